@@ -0,0 +1,87 @@
+package android.app.printerapp.viewer;
+
+import android.app.printerapp.Log;
+import android.opengl.Matrix;
+import android.test.AndroidTestCase;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Bounds of a rotated model of 1M triangles with TransformKernel, against the three Matrix calls per
+ * vertex that refreshRotatedObjectCoordinates used to make.
+ *
+ * Run on a device with ./gradlew connectedAndroidTest, the median time of each way goes to the log
+ * with the tag of this class. Fails if both ways don't give the same bounds.
+ */
+public class TransformKernelBenchmark extends AndroidTestCase {
+
+	private static final String TAG = "TransformKernelBenchmark";
+
+	private static final int TRIANGLES = 1000000;
+
+	//The first runs include the JIT, the median leaves them out
+	private static final int RUNS = 7;
+
+	public void testBounds() {
+		float[] vertices = new float[TRIANGLES * 9];
+		Random random = new Random(0);
+		for (int i = 0; i < vertices.length; i++) vertices[i] = random.nextFloat() * 200 - 100;
+
+		float[] rotation = new float[16];
+		Matrix.setRotateM(rotation, 0, 30, 1, 1, 0);
+
+		float[] matrixBounds = new float[6];
+		float[] kernelBounds = new float[6];
+		long[] matrixTimes = new long[RUNS];
+		long[] kernelTimes = new long[RUNS];
+
+		for (int run = 0; run < RUNS; run++) {
+			long time = System.nanoTime();
+			getMatrixBounds(vertices, rotation, matrixBounds);
+			matrixTimes[run] = System.nanoTime() - time;
+
+			time = System.nanoTime();
+			new TransformKernel(rotation).getBounds(vertices, kernelBounds);
+			kernelTimes[run] = System.nanoTime() - time;
+		}
+
+		for (int k = 0; k < 6; k++) assertEquals(matrixBounds[k], kernelBounds[k], 1e-3f);
+
+		Log.i(TAG, "Bounds of " + TRIANGLES + " triangles, median of " + RUNS + " runs: Matrix "
+				+ median(matrixTimes) / 1000000 + " ms, kernel " + median(kernelTimes) / 1000000 + " ms");
+	}
+
+	//The way refreshRotatedObjectCoordinates did it before the kernel
+	private static void getMatrixBounds(float[] vertices, float[] rotation, float[] bounds) {
+		float[] vector = new float[4];
+		float[] result = new float[4];
+		float[] aux = new float[16];
+
+		for (int k = 0; k < 3; k++) {
+			bounds[k] = Float.MAX_VALUE;
+			bounds[k + 3] = -Float.MAX_VALUE;
+		}
+
+		for (int i = 0; i < vertices.length; i += 3) {
+			vector[0] = vertices[i];
+			vector[1] = vertices[i + 1];
+			vector[2] = vertices[i + 2];
+
+			Matrix.setIdentityM(aux, 0);
+			Matrix.multiplyMM(aux, 0, rotation, 0, aux, 0);
+			Matrix.multiplyMV(result, 0, aux, 0, vector, 0);
+
+			for (int k = 0; k < 3; k++) {
+				bounds[k] = Math.min(bounds[k], result[k]);
+				bounds[k + 3] = Math.max(bounds[k + 3], result[k]);
+			}
+		}
+	}
+
+	private static long median(long[] times) {
+		long[] sorted = times.clone();
+		Arrays.sort(sorted);
+		return sorted[sorted.length / 2];
+	}
+}
@@ -13,6 +13,8 @@ import android.app.printerapp.history.SwipeDismissListViewTouchListener;
 import android.app.printerapp.library.LibraryController;
 import android.app.printerapp.library.LibraryFragment;
 import android.app.printerapp.library.detail.DetailViewFragment;
+import android.app.printerapp.model.ModelPrinter;
+import android.app.printerapp.octoprint.PrinterEvents;
 import android.app.printerapp.settings.SettingsFragment;
 import android.app.printerapp.util.ui.AnimationHelper;
 import android.app.printerapp.viewer.ViewerMainFragment;
@@ -41,6 +43,8 @@ import android.widget.TabHost;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import org.json.JSONObject;
+
 /**
  * Created by alberto-baeza on 1/21/15.
  */
@@ -103,6 +107,10 @@ public class MainActivity extends ActionBarActivity {
         LocalBroadcastManager.getInstance(this).registerReceiver(mAdapterNotification,
                 new IntentFilter("notify"));
 
+        //Status updates of every printer, at most once per frame
+        PrinterEvents.subscribeStatus(ModelPrinter.CHANGED_STATE | ModelPrinter.CHANGED_PROGRESS
+                | ModelPrinter.CHANGED_LOADED, mStatusListener);
+
         IntentFilter filter = new IntentFilter();
         filter.addAction(Intent.ACTION_LOCALE_CHANGED);
 
@@ -585,7 +593,19 @@ public class MainActivity extends ActionBarActivity {
 
     }
 
-    //notify ALL adapters every time a notification is received
+    /**
+     * State, progress or loaded job of a printer changed, the only status shown in the grid. Called for each
+     * changed printer at the end of the frame, the grid is laid out again once for all of them
+     */
+    private PrinterEvents.Listener mStatusListener = new PrinterEvents.Listener() {
+        @Override
+        public void onPrinterEvent(ModelPrinter printer, int type, int changes, JSONObject payload) {
+
+            if (mDevicesFragment!=null) mDevicesFragment.notifyAdapter();
+
+        }
+    };
+
     private BroadcastReceiver mAdapterNotification = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
@@ -643,10 +663,30 @@ Close app on locale change
 
         // Unregister since the activity is not visible
         LocalBroadcastManager.getInstance(this).unregisterReceiver(mAdapterNotification);
+        PrinterEvents.unsubscribe(PrinterEvents.STATUS, mStatusListener);
 
         super.onDestroy();
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+
+        //Release cached gcodes before the system has to kill the app
+        GcodeCache.onTrimMemory(level);
+
+        super.onTrimMemory(level);
+
+    }
+
+    @Override
+    public void onLowMemory() {
+
+        GcodeCache.onLowMemory();
+
+        super.onLowMemory();
+
+    }
+
     @Override
     protected void onResume() {
 
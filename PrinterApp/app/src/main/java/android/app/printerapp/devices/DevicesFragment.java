@@ -360,7 +360,7 @@ import android.widget.Toast;
 
                                     DatabaseController.deleteFromDb(p.getId());
                                     MainActivity.refreshDevicesCount();
-                                    DevicesListController.getList().remove(p); p.setPosition(-1);
+                                    DevicesListController.removeFromList(p); p.setPosition(-1);
 
                                 }
                                 notifyAdapter();
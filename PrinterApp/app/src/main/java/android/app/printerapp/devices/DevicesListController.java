@@ -5,6 +5,8 @@ import android.app.printerapp.MainActivity;
 import android.app.printerapp.R;
 import android.app.printerapp.devices.database.DatabaseController;
 import android.app.printerapp.model.ModelPrinter;
+import android.app.printerapp.octoprint.HttpClientPool;
+import android.app.printerapp.octoprint.HttpUtils;
 import android.app.printerapp.octoprint.OctoprintFiles;
 import android.app.printerapp.octoprint.StateUtils;
 import android.app.printerapp.viewer.SlicingHandler;
@@ -40,11 +42,20 @@ public class DevicesListController {
     //Add element to the list
     public static void addToList(ModelPrinter m) {
         mList.add(m);
+        HttpUtils.clearApiKeys();
 
         Log.i("Extra", "Added " + m.getId());
 
     }
 
+    //Remove element from the list
+    public static void removeFromList(ModelPrinter m) {
+        if (mList.remove(m)) {
+            HttpUtils.clearApiKeys();
+            HttpClientPool.remove(m.getAddress());
+        }
+    }
+
     //Return the list
     public static ArrayList<ModelPrinter> getList() {
 
@@ -99,6 +110,7 @@ public class DevicesListController {
     public static void loadList(final Context context) {
 
         mList.clear();
+        HttpUtils.clearApiKeys();
 
         Cursor c = DatabaseController.retrieveDeviceList();
 
@@ -195,7 +207,7 @@ public class DevicesListController {
 
         if (target != null) {
             Log.i("OUT", "Removing " + target.getName() + " with  index " + mList.indexOf(target));
-            mList.remove(mList.indexOf(target));
+            removeFromList(target);
         }
 
     }
@@ -4,6 +4,7 @@ import android.app.printerapp.Log;
 import android.app.printerapp.MainActivity;
 import android.app.printerapp.devices.database.DeviceInfo.FeedEntry;
 import android.app.printerapp.model.ModelPrinter;
+import android.app.printerapp.octoprint.HttpUtils;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.SharedPreferences;
@@ -228,6 +229,9 @@ public class DatabaseController {
 		}
 			
 		editor.commit();
+
+		//The keys looked up for the requests may have changed
+		if (TAG_KEYS.equals(where)) HttpUtils.clearApiKeys();
 		
 	}
 	
@@ -61,10 +61,10 @@ public class DiscoveryController {
 
         try{
             //Clear list for unadded printers
-            for (ModelPrinter p : DevicesListController.getList()){
+            for (ModelPrinter p : new ArrayList<ModelPrinter>(DevicesListController.getList())){
 
                 if ((p.getStatus() == StateUtils.STATE_NEW) || (p.getStatus() == StateUtils.STATE_ADHOC))
-                    DevicesListController.getList().remove(p);
+                    DevicesListController.removeFromList(p);
 
             };
 
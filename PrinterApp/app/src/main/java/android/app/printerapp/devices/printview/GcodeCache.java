@@ -2,63 +2,166 @@ package android.app.printerapp.devices.printview;
 
 import android.app.printerapp.Log;
 import android.app.printerapp.viewer.DataStorage;
+import android.content.ComponentCallbacks2;
 
-import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * This class will hold a reference to every gcode already loaded in memory in the app
  * to avoid having to open it every single time
+ *
+ * Gcodes are indexed by their path file and kept in least recently used order, the oldest ones
+ * are dropped when the size of their arrays goes over the memory budget or the system asks to trim memory.
  * Created by alberto-baeza on 12/19/14.
  */
 public class GcodeCache {
 
-    private static ArrayList<DataStorage> mGcodeCacheList;
+    private static final String TAG = "PrintView";
+
+    //Access ordered, the first entry is the least recently used
+    private static LinkedHashMap<String, DataStorage> mGcodeCacheList;
+
+    private static long mMaxSize;
+
+    private static int mHitCount = 0;
+    private static int mMissCount = 0;
+    private static int mEvictionCount = 0;
 
     //Generic constructor
     public GcodeCache(){
 
-        mGcodeCacheList = new ArrayList<DataStorage>();
+        mGcodeCacheList = new LinkedHashMap<String, DataStorage>(16, 0.75f, true);
+
+        //A quarter of the heap by default
+        mMaxSize = Runtime.getRuntime().maxMemory() / 4;
 
     }
 
     //Add a new gcode to the list
-    public static void addGcodeToCache(DataStorage data ){
+    public static synchronized void addGcodeToCache(DataStorage data ){
 
-        mGcodeCacheList.add(data);
+        mGcodeCacheList.put(data.getPathFile(), data);
+
+        trimToSize(mMaxSize);
 
     }
 
     //Retrieve a gcode from the list by its path file
-    public static DataStorage retrieveGcodeFromCache(String path){
+    public static synchronized DataStorage retrieveGcodeFromCache(String path){
+
+        DataStorage data = mGcodeCacheList.get(path);
 
+        if (data != null) mHitCount++;
+        else mMissCount++;
 
-        for(DataStorage data : mGcodeCacheList){
+        return data;
 
-            if (data.getPathFile().equals(path)) return data;
+    }
+
+    //Remove a gcode from the list
+    public static synchronized void removeGcodeFromCache(String path){
+
+        if (mGcodeCacheList.remove(path) != null) {
+
+            Log.i(TAG, mGcodeCacheList.size() + " Removed " + path + " from cache");
 
         }
 
-        return null;
+    }
+
+    //Change the memory budget in bytes, evicting if it's now too small
+    public static synchronized void setMaxSize(long maxSize){
+
+        mMaxSize = maxSize;
+        trimToSize(mMaxSize);
 
     }
 
-    //Remove a gcode from the list
-    public static void removeGcodeFromCache(String path){
+    //Apply the memory budget again, once a gcode has finished loading and its size is known
+    public static synchronized void trim(){
+
+        trimToSize(mMaxSize);
+
+    }
+
+    /**
+     * Drop the least recently used gcodes until the rest fit in maxSize bytes.
+     * Sizes are measured every time because gcodes are added to the cache before they finish loading.
+     */
+    public static synchronized void trimToSize(long maxSize){
 
-        int index = -1;
+        long size = getSize();
 
-        for (int i = 0; i < mGcodeCacheList.size() ; i++){
+        Iterator<Map.Entry<String, DataStorage>> iterator = mGcodeCacheList.entrySet().iterator();
 
-            if (mGcodeCacheList.get(i).getPathFile().equals(path)) {
+        while (size > maxSize && iterator.hasNext()){
 
-                Log.i("PrintView", mGcodeCacheList.size() + " Removed " + path + " from cache");
-                index = i;
+            Map.Entry<String, DataStorage> entry = iterator.next();
 
-            }
+            size -= entry.getValue().getMemorySize();
+            iterator.remove();
+            mEvictionCount++;
+
+            Log.i(TAG, "Evicted " + entry.getKey() + " from cache");
 
         }
 
-        if (index>=0) mGcodeCacheList.remove(index);
+    }
+
+    //Called from the activity callbacks when the system is running low on memory
+    public static synchronized void onTrimMemory(int level){
+
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+
+            trimToSize(0);
+
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+
+            trimToSize(mMaxSize / 2);
+
+        }
+
+        Log.i(TAG, "Trim memory " + level + ": " + getStats());
+
+    }
+
+    public static synchronized void onLowMemory(){
+
+        trimToSize(0);
+
+    }
+
+    //Total size of the cached arrays in bytes
+    public static synchronized long getSize(){
+
+        long size = 0;
+
+        for (DataStorage data : mGcodeCacheList.values()) size += data.getMemorySize();
+
+        return size;
+
+    }
+
+    public static synchronized int getHitCount(){
+        return mHitCount;
+    }
+
+    public static synchronized int getMissCount(){
+        return mMissCount;
+    }
+
+    public static synchronized int getEvictionCount(){
+        return mEvictionCount;
+    }
+
+    public static synchronized String getStats(){
+
+        return mGcodeCacheList.size() + " gcodes, " + getSize() + "/" + mMaxSize + " bytes, "
+                + mHitCount + " hits, " + mMissCount + " misses, " + mEvictionCount + " evictions";
 
     }
 
@@ -19,6 +19,7 @@ import android.app.printerapp.octoprint.HttpUtils;
 import android.app.printerapp.octoprint.OctoprintConnection;
 import android.app.printerapp.octoprint.OctoprintControl;
 import android.app.printerapp.octoprint.OctoprintFiles;
+import android.app.printerapp.octoprint.PrinterEvents;
 import android.app.printerapp.octoprint.StateUtils;
 import android.app.printerapp.util.ui.ViewHelper;
 import android.app.printerapp.viewer.DataStorage;
@@ -239,6 +240,9 @@ public class PrintViewFragment extends Fragment {
                 //Register receiver
                 mContext.registerReceiver(onComplete, new IntentFilter(DownloadManager.ACTION_DOWNLOAD_COMPLETE));
 
+                //Refresh with the status of this printer
+                PrinterEvents.subscribeStatus(mPrinter, ModelPrinter.CHANGED_ALL, mStatusListener);
+
             }
 
 
@@ -809,6 +813,9 @@ public class PrintViewFragment extends Fragment {
         List<DataStorage> gcodeList = new ArrayList<DataStorage>();
         gcodeList.add(mDataGcode);
 
+        //The arrays are loaded now, check the cache still fits in its budget
+        GcodeCache.trim();
+
         mSurface = new ViewerSurfaceView(mContext, gcodeList, ViewerSurfaceView.LAYERS, ViewerMainFragment.PRINT_PREVIEW, null);
 
         mLayout.removeAllViews();
@@ -849,9 +856,21 @@ public class PrintViewFragment extends Fragment {
             Log.e(TAG, e.getMessage());
         }
 
+        PrinterEvents.unsubscribe(PrinterEvents.STATUS, mStatusListener);
+
         super.onDestroyView();
     }
 
+    /**
+     * Status updates of the printer, at most once per frame
+     */
+    private PrinterEvents.Listener mStatusListener = new PrinterEvents.Listener() {
+        @Override
+        public void onPrinterEvent(ModelPrinter printer, int type, int changes, JSONObject payload) {
+            refreshData();
+        }
+    };
+
     /**
      * Receives the "download complete" event asynchronously
      */
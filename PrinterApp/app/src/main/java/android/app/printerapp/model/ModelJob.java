@@ -1,7 +1,6 @@
 package android.app.printerapp.model;
 
-import org.json.JSONException;
-import org.json.JSONObject;
+import android.app.printerapp.octoprint.SocketMessageDecoder;
 
 /**
  * This class defines a new Printing Job as a Status listener. Basically it's a reference to the current
@@ -71,39 +70,58 @@ public class ModelJob {
 	 * 	SETS
 	 *****************/
 		
-	public void updateJob(JSONObject status){
-		JSONObject job, progress;
-		try {
+	/**
+	 * Fields missing from the message keep their value
+	 *
+	 * @return the fields that changed, as ModelPrinter.CHANGED_ flags
+	 */
+	public int updateJob(SocketMessageDecoder.Status status){
+
+		int changes = 0;
+
+		//Current job status filesize/filament/estimated print time
+		if (ModelPrinter.changed(mFile, status.file)) {
+			mFile = status.file;
+			changes |= ModelPrinter.CHANGED_JOB_FILE;
+		}
+		if (ModelPrinter.changed(mFilament, status.filament)) {
+			mFilament = status.filament;
+			changes |= ModelPrinter.CHANGED_JOB_FILE;
+		}
+		if (ModelPrinter.changed(mSize, status.size)) {
+			mSize = status.size;
+			changes |= ModelPrinter.CHANGED_JOB_FILE;
+		}
 
-			//Current job status filesize/filament/estimated print time
-			job = status.getJSONObject("job");
-			
-			mFile = job.getJSONObject("file").getString("name");
-			mFilament = job.getString("filament");
-			mSize = job.getJSONObject("file").getString("size");
+		//Progress time/timelapse
+		if (ModelPrinter.changed(mPrinted, status.filepos)) {
+			mPrinted = status.filepos;
+			changes |= ModelPrinter.CHANGED_PRINT_TIME;
+		}
+		if (ModelPrinter.changed(mPrintTime, status.printTime)) {
+			mPrintTime = status.printTime;
+			changes |= ModelPrinter.CHANGED_PRINT_TIME;
+		}
+		if (ModelPrinter.changed(mPrintTimeLeft, status.printTimeLeft)) {
+			mPrintTimeLeft = status.printTimeLeft;
+			changes |= ModelPrinter.CHANGED_PRINT_TIME;
+		}
+
+		if (ModelPrinter.changed(mProgress, status.completion)) {
+			mProgress = status.completion;
+			changes |= ModelPrinter.CHANGED_PROGRESS;
 
-			//Progress time/timelapse
-			progress = status.getJSONObject("progress");
-			
-			mPrinted = progress.getString("filepos");
-			mPrintTime = progress.getString("printTime");
-			mPrintTimeLeft = progress.getString("printTimeLeft");
-			mProgress = progress.getString("completion");
-			
 			if (!mProgress.equals("null")){
 				Double n = Double.parseDouble(mProgress);
 				if (n.intValue() == 100) mFinished = true;
 				else mFinished = false;
 			} else mFinished = false;
+		}
 
-			//Log.i("MODEL", "Timelapse: " + mTimelapse + " Height: " + mHeight + " Print time: " + mPrintTime +
-					//" Print time left: " + mPrintTimeLeft);
-			
+		//Log.i("MODEL", "Timelapse: " + mTimelapse + " Height: " + mHeight + " Print time: " + mPrintTime +
+				//" Print time left: " + mPrintTimeLeft);
 
-		
-		} catch (JSONException e) {
-			e.printStackTrace();
-		}
+		return changes;
 	}
 	
 	/**
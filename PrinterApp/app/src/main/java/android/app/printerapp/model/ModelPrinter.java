@@ -4,12 +4,13 @@ import android.app.printerapp.devices.DevicesListController;
 import android.app.printerapp.devices.camera.CameraHandler;
 import android.app.printerapp.devices.database.DatabaseController;
 import android.app.printerapp.devices.database.DeviceInfo;
+import android.app.printerapp.octoprint.HttpUtils;
 import android.app.printerapp.octoprint.OctoprintConnection;
+import android.app.printerapp.octoprint.PrinterEvents;
+import android.app.printerapp.octoprint.SocketMessageDecoder;
 import android.app.printerapp.octoprint.StateUtils;
 import android.content.Context;
 
-import org.json.JSONArray;
-import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.File;
@@ -17,6 +18,16 @@ import java.util.ArrayList;
 
 public class ModelPrinter {
 
+    //Fields changed by a status update
+    public static final int CHANGED_STATE = 1;
+    public static final int CHANGED_TEMPERATURE = 2;
+    public static final int CHANGED_PROGRESS = 4;
+    public static final int CHANGED_PRINT_TIME = 8;
+    public static final int CHANGED_JOB_FILE = 16;
+    //Loaded job, its local path or the port, set by the app instead of a status update
+    public static final int CHANGED_LOADED = 32;
+    public static final int CHANGED_ALL = 63;
+
     //Id for database interaction
     private long mId;
 
@@ -169,30 +180,56 @@ public class ModelPrinter {
 	 *  Sets
 	 **********/
 	
-	public void updatePrinter(String message, int stateCode, JSONObject status){
-						
-		mStatus = stateCode;
-		mMessage = message;
-		
+	/**
+	 * Update with a status message from the server
+	 *
+	 * @return the fields that changed, as CHANGED_ flags, 0 if it's the same status
+	 */
+	public int updatePrinter(SocketMessageDecoder.Status status){
+
+		int changes = 0;
+
+		//A message without a state leaves it as it was
+		if (status.hasState) {
+			if (mStatus != status.stateCode) {
+				setStatus(status.stateCode);
+				changes |= CHANGED_STATE;
+			}
+			if (changed(mMessage, status.stateText)) {
+				mMessage = status.stateText;
+				changes |= CHANGED_STATE;
+			}
+		}
 		
-		if (status!=null){
-
-			mJob.updateJob(status);
-			
-			try {
-				//Avoid having empty temperatures
-				JSONArray temperature = status.getJSONArray("temps");
-				if (temperature.length()>0) {
-					mTemperature = temperature.getJSONObject(0).getJSONObject("tool0").getString("actual");
-					mTempTarget = temperature.getJSONObject(0).getJSONObject("tool0").getString("target");
-
-                    mBedTemperature = temperature.getJSONObject(0).getJSONObject("bed").getString("actual");
-                    mBedTempTarget = temperature.getJSONObject(0).getJSONObject("bed").getString("target");
-				}
-			} catch (JSONException e) {
-				e.printStackTrace();
+		changes |= mJob.updateJob(status);
+
+		//Avoid having empty temperatures
+		if (status.hasTemps) {
+			if (changed(mTemperature, status.toolActual)) {
+				mTemperature = status.toolActual;
+				changes |= CHANGED_TEMPERATURE;
+			}
+			if (changed(mTempTarget, status.toolTarget)) {
+				mTempTarget = status.toolTarget;
+				changes |= CHANGED_TEMPERATURE;
+			}
+
+			if (changed(mBedTemperature, status.bedActual)) {
+				mBedTemperature = status.bedActual;
+				changes |= CHANGED_TEMPERATURE;
+			}
+			if (changed(mBedTempTarget, status.bedTarget)) {
+				mBedTempTarget = status.bedTarget;
+				changes |= CHANGED_TEMPERATURE;
 			}
 		}
+
+		return changes;
+	}
+
+	//Values missing from the message don't change anything
+	static boolean changed(String current, String value) {
+		return (value != null) && (!value.equals(current));
 	}
 	
 	public void updateFiles(File m){
@@ -202,12 +239,18 @@ public class ModelPrinter {
 	public void startUpdate(Context context){
 		//Initialize web socket connection
 		//OctoprintConnection.getNewConnection(context, this, false);
-        mStatus = StateUtils.STATE_NONE;
+        setStatus(StateUtils.STATE_NONE);
 		OctoprintConnection.openSocket(this, context);
 	}
 	
 	public void setConnecting(){
-		mStatus = StateUtils.STATE_NONE;
+		setStatus(StateUtils.STATE_NONE);
+	}
+
+	//Ad-hoc printers are matched by network instead of address, the API keys cached for the list don't hold after one changes
+	private void setStatus(int status){
+		if ((mStatus == StateUtils.STATE_ADHOC) != (status == StateUtils.STATE_ADHOC)) HttpUtils.clearApiKeys();
+		mStatus = status;
 	}
 	
 	/*public void setNotConfigured(){
@@ -248,16 +291,24 @@ public class ModelPrinter {
     public void setDisplayColor(int color) { mDisplayColor = color; }
 	
 	public void setLoaded(boolean load){
+		if (mJobLoaded == load) return;
 		mJobLoaded = load;
+		PrinterEvents.postStatus(this, CHANGED_LOADED);
 	}
 	
 	public void setJobPath(String path){
+		if ((path == null) ? (mJobPath == null) : path.equals(mJobPath)) return;
 		mJobPath = path;
+		PrinterEvents.postStatus(this, CHANGED_LOADED);
 	}
 
     public void setId(long id) { mId = id; }
 
-    public void setPort(String port) { mPort = port; }
+    public void setPort(String port) {
+        if ((port == null) ? (mPort == null) : port.equals(mPort)) return;
+        mPort = port;
+        PrinterEvents.postStatus(this, CHANGED_LOADED);
+    }
 
     public void setNetwork (String network) { mNetwork = network; }
 
@@ -9,21 +9,19 @@ import com.loopj.android.http.RequestParams;
 import com.loopj.android.http.ResponseHandlerInterface;
 import com.loopj.android.http.SyncHttpClient;
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPatch;
-import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
-import org.apache.http.conn.ssl.SSLContexts;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.util.EntityUtils;
 
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 
-import javax.net.ssl.SSLContext;
-
 /**
  * Static class to handle Http requests with the old API or the new one (with API_KEY)
  * @author alberto-baeza
@@ -39,30 +37,28 @@ public class HttpClientHandler {
   
   //GET method for both APIs
   public static void get(String url, RequestParams params, AsyncHttpResponseHandler responseHandler){
-	  generateAsyncHttpClient(url).get(getAbsoluteUrl(url), params, responseHandler);
+	  HttpClientPool.getClient(url, DEFAULT_TIMEOUT).get(null, getAbsoluteUrl(url), generateHeaders(url), params, responseHandler);
 
   }
 
     //GET method for synchronous calls
   public static void sync_get(String url, RequestParams params, ResponseHandlerInterface responseHandler){
 
-      SyncHttpClient sync_client = new SyncHttpClient();
-      sync_client.addHeader("X-Api-Key", HttpUtils.getApiKey(url));
-      sync_client.get(getAbsoluteUrl(url), params, responseHandler);
+      SyncHttpClient sync_client = HttpClientPool.getSyncClient(url, DEFAULT_TIMEOUT);
+      Header[] headers = { new BasicHeader("X-Api-Key", HttpUtils.getApiKey(url)) };
+      sync_client.get(null, getAbsoluteUrl(url), headers, params, responseHandler);
   }
 
   //POST method for multipart forms
   public static void post(String url, RequestParams params, AsyncHttpResponseHandler responseHandler){
-      AsyncHttpClient client = new AsyncHttpClient();
-      client.addHeader("X-Api-Key", HttpUtils.getApiKey(url));
-      client.setTimeout(BIG_TIMEOUT);
-      client.setResponseTimeout(BIG_TIMEOUT);
-      client.post(getAbsoluteUrl(url), params, responseHandler);
+      AsyncHttpClient client = HttpClientPool.getClient(url, BIG_TIMEOUT);
+      Header[] headers = { new BasicHeader("X-Api-Key", HttpUtils.getApiKey(url)) };
+      client.post(null, getAbsoluteUrl(url), headers, params, null, responseHandler);
   }
 
   //POST method for the new API
   public static void post(Context context, String url, HttpEntity entity, String contentType, AsyncHttpResponseHandler responseHandler) {
-      generateAsyncHttpClient(url).post(context, getAbsoluteUrl(url), entity, contentType, responseHandler);
+      HttpClientPool.getClient(url, DEFAULT_TIMEOUT).post(context, getAbsoluteUrl(url), generateHeaders(url), entity, contentType, responseHandler);
   }
 
     //POST method for synchronous calls
@@ -72,7 +68,7 @@ public class HttpClientHandler {
   
   //PUT method for the new API
   public static void put(Context context, String url, HttpEntity entity, String contentType, AsyncHttpResponseHandler responseHandler) {
-      generateAsyncHttpClient(url).put(context, getAbsoluteUrl(url), entity, contentType, responseHandler);
+      HttpClientPool.getClient(url, DEFAULT_TIMEOUT).put(context, getAbsoluteUrl(url), generateHeaders(url), entity, contentType, responseHandler);
   }
 
         //TODO Temporal patch method until it's implemented on the AsyncHttpClient library
@@ -83,13 +79,7 @@ public class HttpClientHandler {
 
         CloseableHttpResponse response = null;
         try {
-            SSLContext sslContext = SSLContexts.createSystemDefault();
-            SSLConnectionSocketFactory sslsf = new SSLConnectionSocketFactory(
-                    sslContext,
-                    SSLConnectionSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
-            CloseableHttpClient  httpClient= HttpClientBuilder.create()
-                    .setSSLSocketFactory(sslsf)
-                    .build();
+            CloseableHttpClient  httpClient= HttpClientPool.getPatchClient();
 
             //CloseableHttpClient httpClient = HttpClients.custom().build();
             HttpPatch httpPatch = new HttpPatch(new URI(getAbsoluteUrl( url) ));
@@ -98,6 +88,9 @@ public class HttpClientHandler {
             httpPatch.setEntity(entity);
             response = httpClient.execute(httpPatch);
 
+            //Read to the end so the connection goes back to the pool
+            EntityUtils.consume(response.getEntity());
+
         } catch (URISyntaxException e) {
             e.printStackTrace();
         } catch (ClientProtocolException e) {
@@ -123,36 +116,32 @@ public class HttpClientHandler {
   
   //DELETE method
   public static void delete(Context context, String url, AsyncHttpResponseHandler responseHandler) throws IllegalArgumentException{
-      generateAsyncHttpClient(url).delete(context, getAbsoluteUrl(url), responseHandler);
+      HttpClientPool.getClient(url, DEFAULT_TIMEOUT).delete(context, getAbsoluteUrl(url), generateHeaders(url), responseHandler);
   }
   
 
   private static String getAbsoluteUrl(String relativeUrl) {
 
 
-      Log.i("Connection", BASE_URL + relativeUrl + "?apikey=" + HttpUtils.getApiKey(relativeUrl));
+      Log.i("Connection", BASE_URL + relativeUrl);
       return BASE_URL + relativeUrl;
   }
 
     /**
-     * Generate a client for this session
+     * Headers for a request, the clients are shared by all the requests to a host
      * @param relativeUrl
      * @return
      */
 
-    private static AsyncHttpClient generateAsyncHttpClient(String relativeUrl){
+    private static Header[] generateHeaders(String relativeUrl){
 
-        AsyncHttpClient client = new AsyncHttpClient();
-        client.addHeader("Content-Type", "application/json");
-
-        if (!relativeUrl.contains(HttpUtils.URL_AUTHENTICATION)){
-            client.addHeader("X-Api-Key", HttpUtils.getApiKey(relativeUrl));
+        if (relativeUrl.contains(HttpUtils.URL_AUTHENTICATION)){
+            return new Header[] { new BasicHeader("Content-Type", "application/json") };
         }
 
-        client.setTimeout(DEFAULT_TIMEOUT);
-        client.setResponseTimeout(DEFAULT_TIMEOUT);
-
-        return client;
+        return new Header[] {
+                new BasicHeader("Content-Type", "application/json"),
+                new BasicHeader("X-Api-Key", HttpUtils.getApiKey(relativeUrl)) };
 
     }
 
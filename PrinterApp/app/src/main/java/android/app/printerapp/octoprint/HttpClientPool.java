@@ -0,0 +1,307 @@
+package android.app.printerapp.octoprint;
+
+import android.app.printerapp.Log;
+import android.content.Context;
+
+import com.loopj.android.http.AsyncHttpClient;
+import com.loopj.android.http.RequestHandle;
+import com.loopj.android.http.ResponseHandlerInterface;
+import com.loopj.android.http.SyncHttpClient;
+
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.scheme.SocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLContexts;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.DefaultedHttpParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HTTP clients shared by all the requests to the servers, one per host and timeout.
+ *
+ * All the clients of a host send their requests through one connection pool, so a host never has more than
+ * MAX_CONNECTIONS_PER_HOST connections whatever the client, PATCH requests included. Async requests run in an
+ * executor shared by all the clients. Headers are sent with every request, the clients have none of their own.
+ * Counts the requests and the connections opened for them so the reuse rate can be checked in the log.
+ */
+public class HttpClientPool {
+
+    private static final String TAG = "HttpClientPool";
+
+    private static final int MAX_CONNECTIONS_PER_HOST = 4;
+
+    //Taken from the connections of every host for the separate PATCH client
+    private static final int PATCH_CONNECTIONS_PER_HOST = 1;
+    private static final int MAX_CONNECTIONS_PATCH = 8;
+
+    //Log the statistics every this many requests
+    private static final int STATS_INTERVAL = 100;
+
+    private static final Map<String, Host> mHosts = new HashMap<String, Host>();
+    private static ExecutorService mExecutor;
+    private static CloseableHttpClient mPatchClient;
+
+    private static final AtomicLong mRequests = new AtomicLong();
+    private static final AtomicLong mConnections = new AtomicLong();
+
+    /**
+     * Client for a request to this relative url, to be called once per request
+     */
+    public static synchronized AsyncHttpClient getClient(String relativeUrl, int timeout) {
+        Host host = getConnections(relativeUrl);
+
+        AsyncHttpClient client = host.mClients.get(timeout);
+        if (client == null) {
+            client = new HostClient(host.mHttpClient);
+            client.setThreadPool(getExecutor());
+            configure(client, timeout);
+            host.mClients.put(timeout, client);
+        }
+
+        countRequest();
+        return client;
+    }
+
+    /**
+     * Client that runs the request in the calling thread, to be called once per request
+     */
+    public static synchronized SyncHttpClient getSyncClient(String relativeUrl, int timeout) {
+        Host host = getConnections(relativeUrl);
+
+        SyncHttpClient client = host.mSyncClients.get(timeout);
+        if (client == null) {
+            client = new HostSyncClient(host.mHttpClient);
+            configure(client, timeout);
+            host.mSyncClients.put(timeout, client);
+        }
+
+        countRequest();
+        return client;
+    }
+
+    /**
+     * Client for the requests the async library can't make, with its own connection pool for all the hosts.
+     * Not in the statistics.
+     */
+    public static synchronized CloseableHttpClient getPatchClient() {
+        if (mPatchClient == null) {
+            SSLConnectionSocketFactory sslsf = new SSLConnectionSocketFactory(
+                    SSLContexts.createSystemDefault(),
+                    SSLConnectionSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
+
+            mPatchClient = HttpClientBuilder.create()
+                    .setSSLSocketFactory(sslsf)
+                    .setMaxConnPerRoute(PATCH_CONNECTIONS_PER_HOST)
+                    .setMaxConnTotal(MAX_CONNECTIONS_PATCH)
+                    .build();
+        }
+
+        return mPatchClient;
+    }
+
+    /**
+     * Close the connections of a host and drop its clients, for printers removed from the list
+     */
+    public static synchronized void remove(String address) {
+        String key = getHost(address);
+
+        Host host = mHosts.remove(key);
+        if (host != null) {
+            host.mHttpClient.getConnectionManager().shutdown();
+            Log.i(TAG, "Removed host " + key + ", " + mHosts.size() + " in the pool");
+        }
+    }
+
+    /**
+     * Connections currently kept by the clients, busy or idle
+     */
+    public static synchronized int getOpenConnections() {
+        int connections = 0;
+
+        for (Host host : mHosts.values()) {
+            ClientConnectionManager manager = host.mHttpClient.getConnectionManager();
+
+            if (manager instanceof ThreadSafeClientConnManager)
+                connections += ((ThreadSafeClientConnManager) manager).getConnectionsInPool();
+        }
+
+        return connections;
+    }
+
+    /**
+     * Share of the requests that went through a connection that was already open, from 0 to 1
+     */
+    public static float getReuseRate() {
+        long requests = mRequests.get();
+        if (requests == 0) return 0;
+
+        return Math.max(0, 1 - (float) mConnections.get() / requests);
+    }
+
+    public static void logStats() {
+        Log.i(TAG, mRequests.get() + " requests, " + mConnections.get() + " connections opened, "
+                + getOpenConnections() + " open, reuse rate " + Math.round(getReuseRate() * 100) + "%");
+    }
+
+    private static void configure(AsyncHttpClient client, int timeout) {
+        client.setTimeout(timeout);
+        client.setResponseTimeout(timeout);
+    }
+
+    private static Host getConnections(String relativeUrl) {
+        String key = getHost(relativeUrl);
+
+        Host host = mHosts.get(key);
+        if (host == null) {
+            host = new Host();
+            mHosts.put(key, host);
+
+            Log.i(TAG, "New host " + key + ", " + mHosts.size() + " in the pool");
+        }
+
+        return host;
+    }
+
+    //The timeouts of the client go with the request, the shared client of the host only has the connections
+    private static void setParams(HttpUriRequest request, AsyncHttpClient client) {
+        request.setParams(new DefaultedHttpParams(request.getParams(), client.getHttpClient().getParams()));
+    }
+
+    private static void countRequest() {
+        if (mRequests.incrementAndGet() % STATS_INTERVAL == 0) logStats();
+    }
+
+    //Same address the API key is stored for
+    private static String getHost(String relativeUrl) {
+        int end = relativeUrl.indexOf("/", 1);
+        return (end > 0) ? relativeUrl.substring(0, end) : relativeUrl;
+    }
+
+    private static SchemeRegistry createSchemeRegistry() {
+        SchemeRegistry registry = new SchemeRegistry();
+        registry.register(new Scheme("http", new CountingSocketFactory(PlainSocketFactory.getSocketFactory()), 80));
+        //The servers are reached through http, secure connections are not counted
+        registry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+        return registry;
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (mExecutor == null) {
+            mExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, TAG + "-" + mCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return mExecutor;
+    }
+
+    /**
+     * Connection pool of a host and the clients that use it, one per timeout
+     */
+    private static class Host {
+
+        private final DefaultHttpClient mHttpClient;
+        private final Map<Integer, AsyncHttpClient> mClients = new HashMap<Integer, AsyncHttpClient>();
+        private final Map<Integer, SyncHttpClient> mSyncClients = new HashMap<Integer, SyncHttpClient>();
+
+        Host() {
+            AsyncHttpClient client = new AsyncHttpClient(createSchemeRegistry());
+            client.setMaxConnections(MAX_CONNECTIONS_PER_HOST - PATCH_CONNECTIONS_PER_HOST);
+            mHttpClient = (DefaultHttpClient) client.getHttpClient();
+        }
+    }
+
+    /**
+     * Async client that sends its requests through the connections of the host
+     */
+    private static class HostClient extends AsyncHttpClient {
+
+        private final DefaultHttpClient mHttpClient;
+
+        HostClient(DefaultHttpClient httpClient) {
+            mHttpClient = httpClient;
+        }
+
+        @Override
+        protected RequestHandle sendRequest(DefaultHttpClient client, HttpContext httpContext, HttpUriRequest uriRequest,
+                                            String contentType, ResponseHandlerInterface responseHandler, Context context) {
+            setParams(uriRequest, this);
+            return super.sendRequest(mHttpClient, httpContext, uriRequest, contentType, responseHandler, context);
+        }
+    }
+
+    /**
+     * Sync client that sends its requests through the connections of the host
+     */
+    private static class HostSyncClient extends SyncHttpClient {
+
+        private final DefaultHttpClient mHttpClient;
+
+        HostSyncClient(DefaultHttpClient httpClient) {
+            mHttpClient = httpClient;
+        }
+
+        @Override
+        protected RequestHandle sendRequest(DefaultHttpClient client, HttpContext httpContext, HttpUriRequest uriRequest,
+                                            String contentType, ResponseHandlerInterface responseHandler, Context context) {
+            setParams(uriRequest, this);
+            return super.sendRequest(mHttpClient, httpContext, uriRequest, contentType, responseHandler, context);
+        }
+    }
+
+    /**
+     * Counts every new connection, requests served by a connection from the pool don't get here
+     */
+    private static class CountingSocketFactory implements SocketFactory {
+
+        private final SocketFactory mFactory;
+
+        CountingSocketFactory(SocketFactory factory) {
+            mFactory = factory;
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return mFactory.createSocket();
+        }
+
+        @Override
+        public Socket connectSocket(Socket sock, String host, int port, InetAddress localAddress, int localPort,
+                                    HttpParams params) throws IOException, UnknownHostException {
+            mConnections.incrementAndGet();
+            return mFactory.connectSocket(sock, host, port, localAddress, localPort, params);
+        }
+
+        @Override
+        public boolean isSecure(Socket sock) throws IllegalArgumentException {
+            return mFactory.isSecure(sock);
+        }
+    }
+}
@@ -6,6 +6,9 @@ import android.app.printerapp.devices.database.DatabaseController;
 import android.app.printerapp.devices.discovery.PrintNetworkManager;
 import android.app.printerapp.model.ModelPrinter;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
  * Addresses and static fields for the OctoPrint API connection
  *
@@ -41,14 +44,34 @@ public class HttpUtils {
     public static final String URL_THINGIVERSE = "http://www.thingiverse.com/newest";
     public static final String URL_YOUMAGINE = "https://www.youmagine.com/designs";
 
+    //API key for every host already looked up, "" if it has none
+    private static final Map<String, String> mApiKeys = new ConcurrentHashMap<String, String>();
+
     //Retrieve current API Key from database
     public static String getApiKey(String url) {
         String parsedUrl = url.substring(0, url.indexOf("/", 1));
 
+        String key = mApiKeys.get(parsedUrl);
+        if (key != null) return key;
+
+        return findApiKey(parsedUrl);
+    }
 
+    /**
+     * Forget the keys looked up so far, to be called when the stored keys or the list of printers change
+     */
+    public static synchronized void clearApiKeys() {
+        mApiKeys.clear();
+    }
+
+    //Synchronized with clearApiKeys so a key found before a change is not cached after it
+    private static synchronized String findApiKey(String parsedUrl) {
 
         String id = null;
 
+        //Ad-hoc printers are matched by the current network instead of the address, the keys can't be cached
+        boolean cache = true;
+
         for (ModelPrinter p : DevicesListController.getList()) {
 
 
@@ -56,6 +79,8 @@ public class HttpUtils {
 
                 case StateUtils.STATE_ADHOC:
 
+                    cache = false;
+
                     if (p.getName().equals(PrintNetworkManager.getCurrentNetwork().replace("\"","")))
                         id = PrintNetworkManager.getNetworkId(p.getName());
 
@@ -79,15 +104,21 @@ public class HttpUtils {
 
         }
 
+        String key;
+
         if (DatabaseController.isPreference(DatabaseController.TAG_KEYS, id)) {
 
-            return DatabaseController.getPreference(DatabaseController.TAG_KEYS, id);
+            key = DatabaseController.getPreference(DatabaseController.TAG_KEYS, id);
 
         } else {
 
             Log.i("Connection", id + " is not preference");
-            return "";
+            key = "";
         }
 
+        if (cache) mApiKeys.put(parsedUrl, key);
+
+        return key;
+
     }
 }
@@ -33,6 +33,7 @@ import org.apache.http.entity.StringEntity;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -556,6 +557,12 @@ public class OctoprintConnection {
 
 			  final WebSocketConnection mConnection = new WebSocketConnection();
 
+			   //Reused for every message of this socket
+			   final SocketMessageDecoder decoder = new SocketMessageDecoder();
+
+			   //Server events of this printer while the socket is open
+			   final ServerEventHandler events = new ServerEventHandler(context);
+
 			   //mConnection is a new websocket connection
 		      mConnection.connect(wsuri, new WebSocketHandler() {
 
@@ -568,6 +575,7 @@ public class OctoprintConnection {
                      //TODO unify this method
 		            Log.i("Connection", "Status: Connected to " + wsuri);
                      Log.i("CONNECTION", "Connection from: SOCKET");
+                    events.subscribe(p);
                     doConnection(context,p);
 
 		         }
@@ -581,28 +589,27 @@ public class OctoprintConnection {
 
 		        	  try {
 
-		        	 JSONObject object = new JSONObject(payload);
+		        	 int found = decoder.decode(payload);
 
 		            	//Get the json string for "current" status
-		            	if (object.has("current")){
+		            	if ((found & SocketMessageDecoder.CURRENT) != 0){
 
-		            		JSONObject response = new JSONObject(payload).getJSONObject("current");
+		            		SocketMessageDecoder.Status status = decoder.getStatus();
 
 							//Update job with current status
 			            	//We'll add every single parameter
-							p.updatePrinter(response.getJSONObject("state").getString("text"), createStatus(response.getJSONObject("state").getJSONObject("flags")),
-									response);
+							int changes = p.updatePrinter(status);
 
 
-                            //SEND NOTIFICATION
+                            //SEND NOTIFICATION, once per frame and only if something changed
+                            PrinterEvents.postStatus(p, changes);
 
-                            Intent intent = new Intent("notify");
-                            intent.putExtra("message", "Devices");
-                            LocalBroadcastManager.getInstance(context).sendBroadcast(intent);
+                            //Only if the progress notification would be different
+                            boolean progressChanged = (changes & (ModelPrinter.CHANGED_STATE | ModelPrinter.CHANGED_PROGRESS)) != 0;
 
-                            if (!response.getJSONObject("progress").getString("completion").equals("null")){
+                            if (progressChanged && (status.completion != null) && (!status.completion.equals("null"))){
 
-                                Double d = Double.parseDouble(response.getJSONObject("progress").getString("completion"));
+                                Double d = Double.parseDouble(status.completion);
 
                                 if ((d>0) && (p.getStatus() == StateUtils.STATE_PRINTING)){
 
@@ -630,87 +637,32 @@ public class OctoprintConnection {
 		            	}
 
                          //Check for events in the server
-		            	if (object.has("event")){
-
-		            		JSONObject response = new JSONObject(payload).getJSONObject("event");
-
-                            //Slicing finished should be handled in another method
-		            		if (response.getString("type").equals("SlicingDone")){
-
-		            			JSONObject slicingPayload = response.getJSONObject("payload");
+		            	if ((found & SocketMessageDecoder.EVENT) != 0){
 
-		            			sliceHandling(context, slicingPayload, p.getAddress());
+		            		JSONObject response = decoder.getEvent();
+                            int type = PrinterEvents.getType(response.getString("type"));
 
-		            		}
-
-                            //A file was uploaded
-		            		if (response.getString("type").equals("Upload")){
-
-		            			//p.setLoaded(true);
-                                if (DatabaseController.getPreference(DatabaseController.TAG_SLICING, "Last")!=null)
-                                    if ((DatabaseController.getPreference("Slicing","Last")).equals(response.getJSONObject("payload").getString("file"))){
-
-                                        //Log.i("Slicer","LETS SLICE " + response.getJSONObject("payload").getString("file"));
-                                        }
-
-		            		}
-                            if (response.getString("type").equals("PrintStarted")){
-                                p.setLoaded(true);
-                            }
-
-                            if (response.getString("type").equals("Connected")){
-                                p.setPort(response.getJSONObject("payload").getString("port"));
-                                Log.i("OUT", "UPDATED PORT " + p.getPort());
-                            }
-
-                            if (response.getString("type").equals("PrintDone")){
-
-                                //SEND NOTIFICATION
-
-                                Log.i("OUT", "PRINT FINISHED! " + response.toString());
-
-                                if (p.getJobPath()!=null)addToHistory(p,response.getJSONObject("payload"));
-
-                                SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(context);
-                                if (sharedPref.getBoolean(context.getResources().getString(R.string.shared_preferences_print), true)) {
-
-                                    Intent intentN = new Intent();
-                                    intentN.setAction("android.app.printerapp.NotificationReceiver");
-                                    intentN.putExtra("printer", p.getId());
-                                    intentN.putExtra("progress", 100);
-                                    intentN.putExtra("type", "finish");
-                                    context.sendBroadcast(intentN);
-                                }
-
-
-                            }
-
-                            if (response.getString("type").equals("SettingsUpdated")){
-
-
-                                getLinkedConnection(context,p);
-
-
-                            }
+                            //Handled by the subscribers, the ServerEventHandler of this socket among them
+                            if (type >= 0) PrinterEvents.post(p, type, response.optJSONObject("payload"));
 
 		            	}
 
 
 
                           //update slicing progress in the print panel fragment
-                          if (object.has("slicingProgress")){
+                          if ((found & SocketMessageDecoder.SLICING_PROGRESS) != 0){
 
-                              JSONObject response = new JSONObject(payload).getJSONObject("slicingProgress");
+                              SocketMessageDecoder.SlicingProgress response = decoder.getSlicingProgress();
 
                               //TODO random crash because not yet created
                               try{
                                   //Check if it's our file
                                   if(!DatabaseController.getPreference(DatabaseController.TAG_SLICING,"Last").equals(null))
-                                  if (DatabaseController.getPreference(DatabaseController.TAG_SLICING,"Last").equals( response.getString("source_path"))){
+                                  if (DatabaseController.getPreference(DatabaseController.TAG_SLICING,"Last").equals( response.sourcePath)){
 
                                       //Log.i("Slicer","Progress received for " + response.getString("source_path"));
 
-                                      int progress = response.getInt("progress");
+                                      int progress = response.progress;
 
 
                                       //TODO
@@ -748,6 +700,10 @@ public class OctoprintConnection {
 						e.printStackTrace();
 						Log.i("CONNECTION", "Invalid JSON");
 
+					} catch (IOException e) {
+						e.printStackTrace();
+						Log.i("CONNECTION", "Invalid JSON");
+
 					}
 
 
@@ -762,6 +718,7 @@ public class OctoprintConnection {
 		         public void onClose(int code, String reason) {
 		            Log.i("SOCK", "Connection lost at " + code + " because " + reason);
 
+		            	events.unsubscribe();
 		            	mConnection.disconnect();
 
 		            	//Timeout for reconnection
@@ -809,24 +766,6 @@ public class OctoprintConnection {
 
     }
 
-    public static int createStatus(JSONObject flags){
-
-				try {
-					if (flags.getBoolean("paused")) return StateUtils.STATE_PAUSED;
-					if (flags.getBoolean("printing")) return StateUtils.STATE_PRINTING;
-					if (flags.getBoolean("operational")) return StateUtils.STATE_OPERATIONAL;
-					if (flags.getBoolean("error")) return StateUtils.STATE_ERROR;
-					if (flags.getBoolean("paused")) return StateUtils.STATE_PAUSED;
-					if (flags.getBoolean("closedOrError")) return StateUtils.STATE_CLOSED;
-
-				} catch (JSONException e) {
-					e.printStackTrace();
-				}
-				
-				return StateUtils.STATE_NONE;
-		
-	}
-	
 	/**
 	 * This method will create a dialog to handle the sliced file from the server.
 	 * @param context
@@ -913,4 +852,87 @@ public class OctoprintConnection {
 
     }
 
+    /**
+     * Handles the server events of a printer for the socket that receives them
+     */
+    private static class ServerEventHandler implements PrinterEvents.Listener {
+
+        private static final int[] TYPES = { PrinterEvents.SLICING_DONE, PrinterEvents.PRINT_STARTED,
+                PrinterEvents.CONNECTED, PrinterEvents.PRINT_DONE, PrinterEvents.SETTINGS_UPDATED };
+
+        private final Context mContext;
+
+        ServerEventHandler(Context context) {
+            mContext = context;
+        }
+
+        void subscribe(ModelPrinter p) {
+            for (int type : TYPES) PrinterEvents.subscribe(type, p, this);
+        }
+
+        void unsubscribe() {
+            for (int type : TYPES) PrinterEvents.unsubscribe(type, this);
+        }
+
+        @Override
+        public void onPrinterEvent(ModelPrinter p, int type, int changes, JSONObject payload) {
+
+            try {
+
+                switch (type) {
+
+                    //Slicing finished should be handled in another method
+                    case PrinterEvents.SLICING_DONE:
+
+                        if (payload != null) sliceHandling(mContext, payload, p.getAddress());
+                        break;
+
+                    case PrinterEvents.PRINT_STARTED:
+
+                        p.setLoaded(true);
+                        break;
+
+                    case PrinterEvents.CONNECTED:
+
+                        if (payload == null) break;
+
+                        p.setPort(payload.getString("port"));
+                        Log.i("OUT", "UPDATED PORT " + p.getPort());
+                        break;
+
+                    case PrinterEvents.PRINT_DONE:
+
+                        //SEND NOTIFICATION
+
+                        Log.i("OUT", "PRINT FINISHED! " + payload);
+
+                        if (p.getJobPath() != null && payload != null) addToHistory(p, payload);
+
+                        SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(mContext);
+                        if (sharedPref.getBoolean(mContext.getResources().getString(R.string.shared_preferences_print), true)) {
+
+                            Intent intentN = new Intent();
+                            intentN.setAction("android.app.printerapp.NotificationReceiver");
+                            intentN.putExtra("printer", p.getId());
+                            intentN.putExtra("progress", 100);
+                            intentN.putExtra("type", "finish");
+                            mContext.sendBroadcast(intentN);
+                        }
+
+                        break;
+
+                    case PrinterEvents.SETTINGS_UPDATED:
+
+                        getLinkedConnection(mContext, p);
+                        break;
+
+                }
+
+            } catch (JSONException e) {
+                e.printStackTrace();
+                Log.i("CONNECTION", "Invalid JSON");
+            }
+        }
+    }
+
 }
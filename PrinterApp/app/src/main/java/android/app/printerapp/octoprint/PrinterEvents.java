@@ -0,0 +1,209 @@
+package android.app.printerapp.octoprint;
+
+import android.app.printerapp.model.ModelPrinter;
+import android.os.Handler;
+import android.os.Looper;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Dispatcher for the events of the printers, keyed by event type. Listeners subscribe to a type for every printer
+ * or for a single one.
+ *
+ * Status updates are coalesced: a printer that gets several of them within a frame is dispatched once, at the end
+ * of the frame, with its latest state and all the fields that changed in between. Status listeners say which
+ * fields they show and are only called when one of those changed. Server events are dispatched right away.
+ * Only from the main thread.
+ */
+public class PrinterEvents {
+
+	//Event types
+	public static final int STATUS = 0;
+	public static final int SLICING_DONE = 1;
+	public static final int PRINT_STARTED = 2;
+	public static final int CONNECTED = 3;
+	public static final int PRINT_DONE = 4;
+	public static final int SETTINGS_UPDATED = 5;
+	private static final int TYPES = 6;
+
+	//Status updates closer than this are sent together, in ms
+	private static final long FRAME_INTERVAL = 16;
+
+	public interface Listener {
+
+		/**
+		 * @param changes fields of the printer that changed, as ModelPrinter.CHANGED_ flags, 0 for server events
+		 * @param payload payload of the server event, null for status updates
+		 */
+		void onPrinterEvent(ModelPrinter printer, int type, int changes, JSONObject payload);
+	}
+
+	private static class Subscription {
+		final Listener mListener;
+		final int mChanges;
+
+		Subscription(Listener listener, int changes) {
+			mListener = listener;
+			mChanges = changes;
+		}
+	}
+
+	//Names of the server events
+	private static final Map<String, Integer> mTypes = new HashMap<String, Integer>();
+
+	static {
+		mTypes.put("SlicingDone", SLICING_DONE);
+		mTypes.put("PrintStarted", PRINT_STARTED);
+		mTypes.put("Connected", CONNECTED);
+		mTypes.put("PrintDone", PRINT_DONE);
+		mTypes.put("SettingsUpdated", SETTINGS_UPDATED);
+	}
+
+	private static final List<List<Subscription>> mListeners = new ArrayList<List<Subscription>>();
+	private static final List<Map<ModelPrinter, List<Subscription>>> mPrinterListeners =
+			new ArrayList<Map<ModelPrinter, List<Subscription>>>();
+
+	static {
+		for (int i = 0; i < TYPES; i++) {
+			mListeners.add(new CopyOnWriteArrayList<Subscription>());
+			mPrinterListeners.add(new HashMap<ModelPrinter, List<Subscription>>());
+		}
+	}
+
+	//Printers with a status update waiting for the end of the frame, and the fields changed so far
+	private static final Map<ModelPrinter, Integer> mPendingStatus = new LinkedHashMap<ModelPrinter, Integer>();
+	private static Handler mHandler;
+
+	private static final Runnable mFlushStatus = new Runnable() {
+		@Override
+		public void run() {
+			List<Map.Entry<ModelPrinter, Integer>> pending =
+					new ArrayList<Map.Entry<ModelPrinter, Integer>>(mPendingStatus.entrySet());
+			mPendingStatus.clear();
+
+			for (Map.Entry<ModelPrinter, Integer> entry : pending) {
+				dispatch(entry.getKey(), STATUS, entry.getValue(), null);
+			}
+		}
+	};
+
+	/**
+	 * Type of a server event by its name, -1 if it's not one of ours
+	 */
+	public static int getType(String name) {
+		Integer type = mTypes.get(name);
+		return (type != null) ? type : -1;
+	}
+
+	/**
+	 * Listen to an event type for every printer
+	 */
+	public static void subscribe(int type, Listener listener) {
+		mListeners.get(type).add(new Subscription(listener, ModelPrinter.CHANGED_ALL));
+	}
+
+	/**
+	 * Listen to an event type for a single printer
+	 */
+	public static void subscribe(int type, ModelPrinter printer, Listener listener) {
+		subscribe(type, printer, ModelPrinter.CHANGED_ALL, listener);
+	}
+
+	/**
+	 * Listen to the status updates of every printer that change any of these fields
+	 *
+	 * @param changes ModelPrinter.CHANGED_ flags
+	 */
+	public static void subscribeStatus(int changes, Listener listener) {
+		mListeners.get(STATUS).add(new Subscription(listener, changes));
+	}
+
+	/**
+	 * Listen to the status updates of a single printer that change any of these fields
+	 *
+	 * @param changes ModelPrinter.CHANGED_ flags
+	 */
+	public static void subscribeStatus(ModelPrinter printer, int changes, Listener listener) {
+		subscribe(STATUS, printer, changes, listener);
+	}
+
+	private static void subscribe(int type, ModelPrinter printer, int changes, Listener listener) {
+		Map<ModelPrinter, List<Subscription>> printers = mPrinterListeners.get(type);
+
+		List<Subscription> subscriptions = printers.get(printer);
+		if (subscriptions == null) {
+			subscriptions = new CopyOnWriteArrayList<Subscription>();
+			printers.put(printer, subscriptions);
+		}
+		subscriptions.add(new Subscription(listener, changes));
+	}
+
+	/**
+	 * Stop listening to an event type, for every printer and for each one
+	 */
+	public static void unsubscribe(int type, Listener listener) {
+		remove(mListeners.get(type), listener);
+
+		Map<ModelPrinter, List<Subscription>> printers = mPrinterListeners.get(type);
+		List<ModelPrinter> empty = new ArrayList<ModelPrinter>();
+
+		for (Map.Entry<ModelPrinter, List<Subscription>> entry : printers.entrySet()) {
+			remove(entry.getValue(), listener);
+			if (entry.getValue().isEmpty()) empty.add(entry.getKey());
+		}
+		for (ModelPrinter p : empty) printers.remove(p);
+	}
+
+	/**
+	 * The status of the printer changed, the listeners get it once at the end of the frame
+	 *
+	 * @param changes fields that changed, as ModelPrinter.CHANGED_ flags, nothing is sent if none did
+	 */
+	public static void postStatus(ModelPrinter printer, int changes) {
+		if (changes == 0) return;
+
+		Integer pending = mPendingStatus.get(printer);
+		mPendingStatus.put(printer, (pending != null) ? pending | changes : changes);
+
+		if (pending == null && mPendingStatus.size() == 1) {
+			if (mHandler == null) mHandler = new Handler(Looper.getMainLooper());
+			mHandler.postDelayed(mFlushStatus, FRAME_INTERVAL);
+		}
+	}
+
+	/**
+	 * A server event, dispatched right away
+	 */
+	public static void post(ModelPrinter printer, int type, JSONObject payload) {
+		dispatch(printer, type, 0, payload);
+	}
+
+	private static void dispatch(ModelPrinter printer, int type, int changes, JSONObject payload) {
+		for (Subscription s : mListeners.get(type)) deliver(s, printer, type, changes, payload);
+
+		List<Subscription> subscriptions = mPrinterListeners.get(type).get(printer);
+		if (subscriptions != null) {
+			for (Subscription s : subscriptions) deliver(s, printer, type, changes, payload);
+		}
+	}
+
+	private static void deliver(Subscription s, ModelPrinter printer, int type, int changes, JSONObject payload) {
+		//Status listeners only for the fields they want
+		if (type == STATUS && (s.mChanges & changes) == 0) return;
+
+		s.mListener.onPrinterEvent(printer, type, changes, payload);
+	}
+
+	private static void remove(List<Subscription> subscriptions, Listener listener) {
+		for (Subscription s : subscriptions) {
+			if (s.mListener == listener) subscriptions.remove(s);
+		}
+	}
+}
@@ -0,0 +1,361 @@
+package android.app.printerapp.octoprint;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+/**
+ * Reads the messages of a printer socket in a single pass with a streaming reader, keeping only the fields
+ * the printer and job models use.
+ *
+ * The status and slicing progress go to structs that are reused for every message, so there is one decoder
+ * per socket and its results must be used before decoding the next message. Events are rare and are still
+ * handed over as a JSONObject, built from the same pass. Values are read as the text in the message,
+ * JSON nulls as "null", and fields missing from the message are left null.
+ */
+public class SocketMessageDecoder {
+
+	//Parts found in the last message
+	public static final int CURRENT = 1;
+	public static final int EVENT = 2;
+	public static final int SLICING_PROGRESS = 4;
+
+	//Flags of the printer state, in the order they decide the state
+	private static final String[] FLAGS = { "paused", "printing", "operational", "error", "closedOrError" };
+	private static final int[] FLAG_STATES = { StateUtils.STATE_PAUSED, StateUtils.STATE_PRINTING,
+			StateUtils.STATE_OPERATIONAL, StateUtils.STATE_ERROR, StateUtils.STATE_CLOSED };
+
+	/**
+	 * Printer and job status from a "current" message
+	 */
+	public static class Status {
+
+		//Only if the message had a state, stateCode is STATE_NONE otherwise
+		public boolean hasState;
+		public String stateText;
+		public int stateCode;
+
+		//Only if the message had any temperatures
+		public boolean hasTemps;
+		public String toolActual;
+		public String toolTarget;
+		public String bedActual;
+		public String bedTarget;
+
+		public String file;
+		public String size;
+		public String filament;
+
+		public String filepos;
+		public String printTime;
+		public String printTimeLeft;
+		public String completion;
+
+		//-1 missing, 0 false, 1 true
+		private final int[] mFlags = new int[FLAGS.length];
+
+		private void reset() {
+			hasState = false;
+			stateText = null;
+			stateCode = StateUtils.STATE_NONE;
+			hasTemps = false;
+			toolActual = toolTarget = bedActual = bedTarget = null;
+			file = size = filament = null;
+			filepos = printTime = printTimeLeft = completion = null;
+			for (int i = 0; i < mFlags.length; i++) mFlags[i] = -1;
+		}
+	}
+
+	public static class SlicingProgress {
+
+		public String sourcePath;
+		public int progress;
+
+		private void reset() {
+			sourcePath = null;
+			progress = 0;
+		}
+	}
+
+	private final Status mStatus = new Status();
+	private final SlicingProgress mSlicingProgress = new SlicingProgress();
+	private JSONObject mEvent;
+
+	private JsonReader mReader;
+
+	/**
+	 * Decode a message of the socket
+	 *
+	 * @return the parts found in it, CURRENT, EVENT and SLICING_PROGRESS
+	 */
+	public int decode(String payload) throws IOException, JSONException {
+		int found = 0;
+
+		mEvent = null;
+		mReader = new JsonReader(new StringReader(payload));
+
+		try {
+			mReader.beginObject();
+			while (mReader.hasNext()) {
+				String name = mReader.nextName();
+
+				if (name.equals("current")) {
+					if (readCurrent()) found |= CURRENT;
+				} else if (name.equals("event")) {
+					mEvent = readObject();
+					found |= EVENT;
+				} else if (name.equals("slicingProgress")) {
+					readSlicingProgress();
+					found |= SLICING_PROGRESS;
+				} else mReader.skipValue();
+			}
+			mReader.endObject();
+		} catch (IllegalStateException e) {
+			//Not the structure expected
+			throw new IOException(e.getMessage());
+		} finally {
+			mReader.close();
+			mReader = null;
+		}
+
+		return found;
+	}
+
+	public Status getStatus() {
+		return mStatus;
+	}
+
+	public SlicingProgress getSlicingProgress() {
+		return mSlicingProgress;
+	}
+
+	public JSONObject getEvent() {
+		return mEvent;
+	}
+
+	private boolean readCurrent() throws IOException {
+		Status s = mStatus;
+		s.reset();
+
+		if (!beginObject()) return false;
+
+		while (mReader.hasNext()) {
+			String name = mReader.nextName();
+
+			if (name.equals("state")) readState(s);
+			else if (name.equals("job")) readJob(s);
+			else if (name.equals("progress")) readProgress(s);
+			else if (name.equals("temps")) readTemps(s);
+			else mReader.skipValue();
+		}
+		mReader.endObject();
+
+		s.stateCode = getState(s.mFlags);
+		return true;
+	}
+
+	private void readState(Status s) throws IOException {
+		if (!beginObject()) return;
+		s.hasState = true;
+
+		while (mReader.hasNext()) {
+			String name = mReader.nextName();
+			if (name.equals("text")) s.stateText = readString();
+			else if (name.equals("flags")) readFlags(s.mFlags);
+			else mReader.skipValue();
+		}
+		mReader.endObject();
+	}
+
+	private void readJob(Status s) throws IOException {
+		if (!beginObject()) return;
+
+		while (mReader.hasNext()) {
+			String name = mReader.nextName();
+
+			if (name.equals("file")) {
+				if (!beginObject()) continue;
+
+				while (mReader.hasNext()) {
+					String field = mReader.nextName();
+					if (field.equals("name")) s.file = readString();
+					else if (field.equals("size")) s.size = readString();
+					else mReader.skipValue();
+				}
+				mReader.endObject();
+
+			} else if (name.equals("filament")) s.filament = readString();
+			else mReader.skipValue();
+		}
+		mReader.endObject();
+	}
+
+	private void readProgress(Status s) throws IOException {
+		if (!beginObject()) return;
+
+		while (mReader.hasNext()) {
+			String name = mReader.nextName();
+			if (name.equals("filepos")) s.filepos = readString();
+			else if (name.equals("printTime")) s.printTime = readString();
+			else if (name.equals("printTimeLeft")) s.printTimeLeft = readString();
+			else if (name.equals("completion")) s.completion = readString();
+			else mReader.skipValue();
+		}
+		mReader.endObject();
+	}
+
+	//Only the first entry of the list is used
+	private void readTemps(Status s) throws IOException {
+		if (mReader.peek() != JsonToken.BEGIN_ARRAY) {
+			mReader.skipValue();
+			return;
+		}
+
+		mReader.beginArray();
+		if (mReader.hasNext() && beginObject()) {
+			s.hasTemps = true;
+
+			while (mReader.hasNext()) {
+				String name = mReader.nextName();
+				boolean tool = name.equals("tool0");
+
+				if (!tool && !name.equals("bed")) {
+					mReader.skipValue();
+					continue;
+				}
+				if (!beginObject()) continue;
+
+				while (mReader.hasNext()) {
+					String field = mReader.nextName();
+					if (field.equals("actual")) {
+						if (tool) s.toolActual = readString();
+						else s.bedActual = readString();
+					} else if (field.equals("target")) {
+						if (tool) s.toolTarget = readString();
+						else s.bedTarget = readString();
+					} else mReader.skipValue();
+				}
+				mReader.endObject();
+			}
+			mReader.endObject();
+		}
+		while (mReader.hasNext()) mReader.skipValue();
+		mReader.endArray();
+	}
+
+	private void readFlags(int[] flags) throws IOException {
+		if (!beginObject()) return;
+
+		while (mReader.hasNext()) {
+			String name = mReader.nextName();
+
+			int index = -1;
+			for (int i = 0; i < FLAGS.length; i++) {
+				if (FLAGS[i].equals(name)) index = i;
+			}
+
+			if (index >= 0 && mReader.peek() == JsonToken.BOOLEAN) flags[index] = mReader.nextBoolean() ? 1 : 0;
+			else mReader.skipValue();
+		}
+		mReader.endObject();
+	}
+
+	//First flag that is set decides the state, a missing flag before it leaves the state unknown
+	private static int getState(int[] flags) {
+		for (int i = 0; i < flags.length; i++) {
+			if (flags[i] < 0) return StateUtils.STATE_NONE;
+			if (flags[i] == 1) return FLAG_STATES[i];
+		}
+		return StateUtils.STATE_NONE;
+	}
+
+	private void readSlicingProgress() throws IOException {
+		SlicingProgress s = mSlicingProgress;
+		s.reset();
+
+		if (!beginObject()) return;
+
+		while (mReader.hasNext()) {
+			String name = mReader.nextName();
+			if (name.equals("source_path")) s.sourcePath = readString();
+			else if (name.equals("progress") && mReader.peek() == JsonToken.NUMBER) s.progress = (int) mReader.nextDouble();
+			else mReader.skipValue();
+		}
+		mReader.endObject();
+	}
+
+	//Opens the object if the next value is one, else skips the value
+	private boolean beginObject() throws IOException {
+		if (mReader.peek() == JsonToken.BEGIN_OBJECT) {
+			mReader.beginObject();
+			return true;
+		}
+
+		mReader.skipValue();
+		return false;
+	}
+
+	//Text of a single value, objects and arrays are skipped and give null
+	private String readString() throws IOException {
+		switch (mReader.peek()) {
+			case STRING:
+			case NUMBER:
+				return mReader.nextString();
+			case BOOLEAN:
+				return String.valueOf(mReader.nextBoolean());
+			case NULL:
+				mReader.nextNull();
+				return "null";
+			default:
+				mReader.skipValue();
+				return null;
+		}
+	}
+
+	private JSONObject readObject() throws IOException, JSONException {
+		JSONObject object = new JSONObject();
+
+		mReader.beginObject();
+		while (mReader.hasNext()) {
+			String name = mReader.nextName();
+			object.put(name, readValue());
+		}
+		mReader.endObject();
+
+		return object;
+	}
+
+	private Object readValue() throws IOException, JSONException {
+		switch (mReader.peek()) {
+			case BEGIN_OBJECT:
+				return readObject();
+			case BEGIN_ARRAY:
+				JSONArray array = new JSONArray();
+				mReader.beginArray();
+				while (mReader.hasNext()) array.put(readValue());
+				mReader.endArray();
+				return array;
+			case BOOLEAN:
+				return mReader.nextBoolean();
+			case NULL:
+				mReader.nextNull();
+				return JSONObject.NULL;
+			case NUMBER:
+				//Same types org.json would give
+				String number = mReader.nextString();
+				try {
+					return Long.parseLong(number);
+				} catch (NumberFormatException e) {
+					return Double.parseDouble(number);
+				}
+			default:
+				return mReader.nextString();
+		}
+	}
+}
@@ -575,7 +575,7 @@ public class EditPrinterDialog {
 
                             //Remove from the configured printers list
                             DatabaseController.deleteFromDb(p.getId());
-                            DevicesListController.getList().remove(p);
+                            DevicesListController.removeFromList(p);
 
                             notifyAdapters();
 
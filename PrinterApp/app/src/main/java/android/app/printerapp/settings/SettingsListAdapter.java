@@ -108,8 +108,7 @@ public class SettingsListAdapter extends ArrayAdapter<ModelPrinter> {
                 public void onClick(View v) {
                     DatabaseController.deleteFromDb(m.getId());
 
-                    //TODO change to remove method
-                    DevicesListController.getList().remove(m);
+                    DevicesListController.removeFromList(m);
                     //ItemListActivity.notifyAdapters();
                     notifyDataSetChanged();
                 }
@@ -0,0 +1,326 @@
+package android.app.printerapp.viewer;
+
+import android.app.printerapp.Log;
+import android.opengl.GLES20;
+
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * GPU buffer objects of the models drawn by a renderer.
+ *
+ * Every owner (usually a DataStorage) has a few slots, each one holding the GL buffer of one array.
+ * An array is uploaded the first time it's bound and then reused every frame; it's uploaded again only if
+ * the owner gives a different array for the slot or it was invalidated after an in place edit. If there is
+ * no GPU memory for an array, the slot remembers it and binding it fails until a different array is given,
+ * so the upload is not tried again every frame.
+ *
+ * Buffer names belong to the GL context of the renderer, so there is one manager per renderer and
+ * onContextLost() must be called when a new context is created. Everything else except release()
+ * must be called from the GL thread.
+ */
+public class BufferObjectManager {
+
+	private static final String TAG = "BufferObjectManager";
+
+	//Slots
+	public static final int VERTEX = 0;
+	public static final int NORMAL = 1;
+	public static final int COLOR = 2;
+	public static final int INDEX = 3;
+	public static final int INDEX_FILL = 4;
+	//Reduced mesh of a big model, kept next to the full one
+	public static final int LOD_VERTEX = 5;
+	public static final int LOD_NORMAL = 6;
+	public static final int LOD_INDEX = 7;
+	private static final int SLOTS = 8;
+
+	//Errors left by earlier calls that are cleared before an allocation, glGetError may never run out of them
+	private static final int MAX_PENDING_ERRORS = 16;
+
+	//Big arrays are copied to the GPU through this much native memory at a time
+	private static final int UPLOAD_BUFFER_SIZE = 256 * 1024;
+
+	private static class BufferObject {
+		int mId;
+		//Not kept alive by the buffer, the owner may drop it once uploaded
+		WeakReference<Object> mSource;
+		long mBytes;
+		boolean mFailed;
+	}
+
+	private final IdentityHashMap<Object, BufferObject[]> mBuffers = new IdentityHashMap<Object, BufferObject[]>();
+	private final List<Integer> mPendingDelete = new ArrayList<Integer>();
+
+	private long mMemoryUsage = 0;
+	private ByteBuffer mUploadBuffer;
+
+	/**
+	 * Bind the GL_ARRAY_BUFFER holding this array, uploading it first if needed.
+	 *
+	 * @return the buffer name, or 0 if it couldn't be created and nothing is bound, the draw must be skipped
+	 */
+	public synchronized int bindArray(Object owner, int slot, float[] array) {
+		return bind(owner, slot, GLES20.GL_ARRAY_BUFFER, array, array.length * 4L, false);
+	}
+
+	/**
+	 * Bind the GL_ARRAY_BUFFER holding this array, uploading it first if needed.
+	 *
+	 * @return the buffer name, or 0 if it couldn't be created and nothing is bound, the draw must be skipped
+	 */
+	public synchronized int bindArray(Object owner, int slot, byte[] array) {
+		return bind(owner, slot, GLES20.GL_ARRAY_BUFFER, array, array.length, false);
+	}
+
+	/**
+	 * Bind the GL_ELEMENT_ARRAY_BUFFER holding these indices, uploading them first if needed.
+	 *
+	 * @return the buffer name, or 0 if it couldn't be created and nothing is bound, the draw must be skipped
+	 */
+	public synchronized int bindElements(Object owner, int slot, int[] indices) {
+		return bind(owner, slot, GLES20.GL_ELEMENT_ARRAY_BUFFER, indices, indices.length * 4L, false);
+	}
+
+	/**
+	 * Same as bindElements, the indices are stored as unsigned shorts on the GPU.
+	 * Only for indices below 65536, when the GPU has no support for int indices.
+	 */
+	public synchronized int bindShortElements(Object owner, int slot, int[] indices) {
+		return bind(owner, slot, GLES20.GL_ELEMENT_ARRAY_BUFFER, indices, indices.length * 2L, true);
+	}
+
+	/**
+	 * Bind the buffer of this slot with what was last uploaded to it, for owners that don't keep the array.
+	 *
+	 * @return false if there is nothing uploaded, the array must be bound again
+	 */
+	public synchronized boolean bindUploaded(Object owner, int slot, int target) {
+		BufferObject[] buffers = mBuffers.get(owner);
+		BufferObject buffer = (buffers != null) ? buffers[slot] : null;
+		if (buffer == null || buffer.mSource == null || buffer.mFailed) return false;
+
+		GLES20.glBindBuffer(target, buffer.mId);
+		return true;
+	}
+
+	/**
+	 * Whether glDrawElements accepts GL_UNSIGNED_INT indices, from the GL thread
+	 */
+	public static boolean supportsIntIndices() {
+		String extensions = GLES20.glGetString(GLES20.GL_EXTENSIONS);
+		return extensions != null && extensions.contains("GL_OES_element_index_uint");
+	}
+
+	/**
+	 * Back to client side arrays, to be called after drawing with buffer objects
+	 */
+	public static void unbind() {
+		GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+		GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+	}
+
+	/**
+	 * The arrays of this owner were edited in place, upload them again the next time they are bound
+	 */
+	public synchronized void invalidate(Object owner) {
+		BufferObject[] buffers = mBuffers.get(owner);
+		if (buffers == null) return;
+
+		for (BufferObject buffer : buffers) {
+			if (buffer != null && !buffer.mFailed) buffer.mSource = null;
+		}
+	}
+
+	/**
+	 * The owner won't be drawn anymore. Can be called from any thread, the buffers are deleted
+	 * by the GL thread in deletePending().
+	 */
+	public synchronized void release(Object owner) {
+		BufferObject[] buffers = mBuffers.remove(owner);
+		if (buffers == null) return;
+
+		for (BufferObject buffer : buffers) {
+			if (buffer == null || buffer.mId == 0) continue;
+
+			mPendingDelete.add(buffer.mId);
+			mMemoryUsage -= buffer.mBytes;
+		}
+	}
+
+	public synchronized void deletePending() {
+		if (mPendingDelete.isEmpty()) return;
+
+		int[] ids = new int[mPendingDelete.size()];
+		for (int i = 0; i < ids.length; i++) ids[i] = mPendingDelete.get(i);
+
+		GLES20.glDeleteBuffers(ids.length, ids, 0);
+		mPendingDelete.clear();
+	}
+
+	/**
+	 * The GL context was recreated and the old buffer names are gone with it, forget them without deleting
+	 */
+	public synchronized void onContextLost() {
+		mBuffers.clear();
+		mPendingDelete.clear();
+		mMemoryUsage = 0;
+	}
+
+	/**
+	 * GPU memory used by all the buffers, in bytes
+	 */
+	public synchronized long getMemoryUsage() {
+		return mMemoryUsage;
+	}
+
+	/**
+	 * GPU memory used by the buffers of an owner, in bytes
+	 */
+	public synchronized long getMemoryUsage(Object owner) {
+		BufferObject[] buffers = mBuffers.get(owner);
+		if (buffers == null) return 0;
+
+		long bytes = 0;
+		for (BufferObject buffer : buffers) {
+			if (buffer != null) bytes += buffer.mBytes;
+		}
+		return bytes;
+	}
+
+	//Int arrays are uploaded as unsigned shorts when shortIndices is set
+	private int bind(Object owner, int slot, int target, Object array, long bytes, boolean shortIndices) {
+		BufferObject[] buffers = mBuffers.get(owner);
+		if (buffers == null) {
+			buffers = new BufferObject[SLOTS];
+			mBuffers.put(owner, buffers);
+		}
+
+		BufferObject buffer = buffers[slot];
+		if (buffer == null) {
+			buffer = new BufferObject();
+			buffers[slot] = buffer;
+		}
+
+		boolean uploaded = buffer.mSource != null && buffer.mSource.get() == array;
+
+		//Didn't fit last time, don't try again every frame
+		if (uploaded && buffer.mFailed) {
+			GLES20.glBindBuffer(target, 0);
+			return 0;
+		}
+
+		if (buffer.mId == 0) {
+			int[] ids = new int[1];
+			GLES20.glGenBuffers(1, ids, 0);
+			buffer.mId = ids[0];
+		}
+
+		GLES20.glBindBuffer(target, buffer.mId);
+
+		if (!uploaded) {
+			mMemoryUsage -= buffer.mBytes;
+			buffer.mBytes = 0;
+			buffer.mSource = null;
+			buffer.mFailed = false;
+
+			//Only the error of the allocation
+			for (int i = 0; i < MAX_PENDING_ERRORS; i++) {
+				if (GLES20.glGetError() == GLES20.GL_NO_ERROR) break;
+			}
+
+			GLES20.glBufferData(target, (int) bytes, null, GLES20.GL_STATIC_DRAW);
+
+			if (GLES20.glGetError() == GLES20.GL_OUT_OF_MEMORY) {
+				Log.e(TAG, "Not enough GPU memory for " + bytes + " bytes, " + mMemoryUsage + " in use");
+
+				GLES20.glBindBuffer(target, 0);
+				GLES20.glDeleteBuffers(1, new int[] { buffer.mId }, 0);
+				buffer.mId = 0;
+				buffer.mSource = new WeakReference<Object>(array);
+				buffer.mFailed = true;
+				return 0;
+			}
+
+			if (array instanceof float[]) upload(target, (float[]) array);
+			else if (array instanceof byte[]) upload(target, (byte[]) array);
+			else if (shortIndices) uploadShorts(target, (int[]) array);
+			else upload(target, (int[]) array);
+
+			buffer.mSource = new WeakReference<Object>(array);
+			buffer.mBytes = bytes;
+			mMemoryUsage += bytes;
+
+			Log.i(TAG, "Uploaded " + bytes + " bytes, " + mMemoryUsage + " in use");
+		}
+
+		return buffer.mId;
+	}
+
+	private void upload(int target, float[] array) {
+		FloatBuffer view = getUploadBuffer().asFloatBuffer();
+
+		for (int from = 0; from < array.length; from += view.capacity()) {
+			int count = Math.min(view.capacity(), array.length - from);
+
+			view.clear();
+			view.put(array, from, count);
+			view.flip();
+			GLES20.glBufferSubData(target, from * 4, count * 4, view);
+		}
+	}
+
+	private void upload(int target, int[] array) {
+		IntBuffer view = getUploadBuffer().asIntBuffer();
+
+		for (int from = 0; from < array.length; from += view.capacity()) {
+			int count = Math.min(view.capacity(), array.length - from);
+
+			view.clear();
+			view.put(array, from, count);
+			view.flip();
+			GLES20.glBufferSubData(target, from * 4, count * 4, view);
+		}
+	}
+
+	private void uploadShorts(int target, int[] array) {
+		ShortBuffer view = getUploadBuffer().asShortBuffer();
+
+		for (int from = 0; from < array.length; from += view.capacity()) {
+			int count = Math.min(view.capacity(), array.length - from);
+
+			view.clear();
+			for (int i = from; i < from + count; i++) view.put((short) array[i]);
+			view.flip();
+			GLES20.glBufferSubData(target, from * 2, count * 2, view);
+		}
+	}
+
+	private void upload(int target, byte[] array) {
+		ByteBuffer view = getUploadBuffer();
+
+		for (int from = 0; from < array.length; from += view.capacity()) {
+			int count = Math.min(view.capacity(), array.length - from);
+
+			view.clear();
+			view.put(array, from, count);
+			view.flip();
+			GLES20.glBufferSubData(target, from, count, view);
+		}
+	}
+
+	private ByteBuffer getUploadBuffer() {
+		if (mUploadBuffer == null) {
+			mUploadBuffer = ByteBuffer.allocateDirect(UPLOAD_BUFFER_SIZE);
+			mUploadBuffer.order(ByteOrder.nativeOrder());
+		}
+		return mUploadBuffer;
+	}
+}
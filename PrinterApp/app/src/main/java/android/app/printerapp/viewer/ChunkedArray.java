@@ -0,0 +1,136 @@
+package android.app.printerapp.viewer;
+
+/**
+ * Growable list of primitive values, the chunk bookkeeping shared by ChunkedFloatArray, ChunkedIntArray
+ * and ChunkedByteArray. A is the primitive array type, subclasses only add the typed accessors.
+ *
+ * Values are stored in fixed-size chunks, so growing never copies what was already added and nothing
+ * is ever boxed. When the number of values is known before adding them, reserve() makes the list
+ * fill a single array of exactly that size, which freeze() hands over without copying. Otherwise
+ * freeze() copies the chunks once into an exact-size array, releasing them as they are copied.
+ */
+abstract class ChunkedArray<A> {
+
+	static final int CHUNK_SHIFT = 14;
+	static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+	static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	private Object[] mChunks = new Object[4];
+	//A reserved list is a single chunk as long as the whole list
+	private int mShift = CHUNK_SHIFT;
+	private int mMask = CHUNK_MASK;
+	private boolean mReserved = false;
+
+	//Chunk being filled and the size at which it is full
+	protected A mCurrent;
+	private int mLimit = 0;
+	private int mSize = 0;
+
+	protected abstract A newArray(int length);
+
+	public int size() {
+		return mSize;
+	}
+
+	/**
+	 * Make room for exactly this many values, only if the list is empty. Adding more still works,
+	 * the list goes back to chunks, and adding fewer makes freeze() copy them.
+	 */
+	public void reserve(int capacity) {
+		if (mSize > 0 || capacity <= 0) return;
+
+		mCurrent = newArray(capacity);
+		mChunks[0] = mCurrent;
+		mShift = 31;
+		mMask = Integer.MAX_VALUE;
+		mLimit = capacity;
+		mReserved = true;
+	}
+
+	/**
+	 * Offset in mCurrent of the value being added
+	 */
+	protected final int next() {
+		if (mSize == mLimit) grow();
+		return mSize++ & mMask;
+	}
+
+	@SuppressWarnings("unchecked")
+	protected final A chunk(int index) {
+		return (A) mChunks[index >> mShift];
+	}
+
+	protected final int offset(int index) {
+		return index & mMask;
+	}
+
+	/**
+	 * Move the content to an array of exactly size() elements and empty the list.
+	 * A single full chunk or reserved array is handed over, otherwise the chunks are copied once.
+	 */
+	public A freeze() {
+		A array;
+
+		if (mSize > 0 && mSize == mLimit && (mReserved || mSize == CHUNK_SIZE)) {
+			array = mCurrent;
+		} else {
+			array = newArray(mSize);
+			int chunkSize = mReserved ? mSize : CHUNK_SIZE;
+			int remaining = mSize;
+			int pos = 0;
+
+			for (int i = 0; remaining > 0; i++) {
+				int length = Math.min(remaining, chunkSize);
+				System.arraycopy(mChunks[i], 0, array, pos, length);
+				mChunks[i] = null;
+				pos += length;
+				remaining -= length;
+			}
+		}
+
+		clear();
+		return array;
+	}
+
+	public void clear() {
+		mChunks = new Object[4];
+		mShift = CHUNK_SHIFT;
+		mMask = CHUNK_MASK;
+		mReserved = false;
+		mCurrent = null;
+		mLimit = 0;
+		mSize = 0;
+	}
+
+	private void grow() {
+		if (mReserved) {
+			//More values than reserved, go on in chunks
+			A reserved = mCurrent;
+			int size = mSize;
+			clear();
+
+			while (mSize < size) {
+				addChunk();
+				int count = Math.min(CHUNK_SIZE, size - mSize);
+				System.arraycopy(reserved, mSize, mCurrent, 0, count);
+				mSize += count;
+			}
+			if (mSize < mLimit) return;
+		}
+
+		addChunk();
+	}
+
+	private void addChunk() {
+		int index = mSize >> CHUNK_SHIFT;
+		if (index == mChunks.length) {
+			Object[] chunks = new Object[mChunks.length * 2];
+			System.arraycopy(mChunks, 0, chunks, 0, mChunks.length);
+			mChunks = chunks;
+		}
+
+		mCurrent = newArray(CHUNK_SIZE);
+		mChunks[index] = mCurrent;
+		mLimit += CHUNK_SIZE;
+	}
+}
@@ -0,0 +1,25 @@
+package android.app.printerapp.viewer;
+
+/**
+ * Growable list of primitive bytes, see ChunkedArray.
+ */
+public class ChunkedByteArray extends ChunkedArray<byte[]> {
+
+	public void add(byte value) {
+		int offset = next();
+		mCurrent[offset] = value;
+	}
+
+	public byte get(int index) {
+		return chunk(index)[offset(index)];
+	}
+
+	public void set(int index, byte value) {
+		chunk(index)[offset(index)] = value;
+	}
+
+	@Override
+	protected byte[] newArray(int length) {
+		return new byte[length];
+	}
+}
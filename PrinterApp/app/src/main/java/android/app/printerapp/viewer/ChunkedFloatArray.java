@@ -0,0 +1,25 @@
+package android.app.printerapp.viewer;
+
+/**
+ * Growable list of primitive floats, see ChunkedArray.
+ */
+public class ChunkedFloatArray extends ChunkedArray<float[]> {
+
+	public void add(float value) {
+		int offset = next();
+		mCurrent[offset] = value;
+	}
+
+	public float get(int index) {
+		return chunk(index)[offset(index)];
+	}
+
+	public void set(int index, float value) {
+		chunk(index)[offset(index)] = value;
+	}
+
+	@Override
+	protected float[] newArray(int length) {
+		return new float[length];
+	}
+}
@@ -0,0 +1,25 @@
+package android.app.printerapp.viewer;
+
+/**
+ * Growable list of primitive ints, see ChunkedArray.
+ */
+public class ChunkedIntArray extends ChunkedArray<int[]> {
+
+	public void add(int value) {
+		int offset = next();
+		mCurrent[offset] = value;
+	}
+
+	public int get(int index) {
+		return chunk(index)[offset(index)];
+	}
+
+	public void set(int index, int value) {
+		chunk(index)[offset(index)] = value;
+	}
+
+	@Override
+	protected int[] newArray(int length) {
+		return new int[length];
+	}
+}
@@ -0,0 +1,291 @@
+package android.app.printerapp.viewer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Vertices of the 3D convex hull of a point set, computed with Quickhull.
+ *
+ * The extremes of a model in any direction are always hull vertices, so the bounding box of the rotated model
+ * only needs to transform these, usually a few hundred points, instead of every vertex of the mesh.
+ * Points closer to the hull than a tolerance relative to the model size may be left out, so the bounds can be
+ * smaller by that much at most. Round, finely tessellated models can have most of their vertices on the hull;
+ * past MAX_VERTICES it gives up, the hull would save little over the whole mesh.
+ *
+ * Plain Java, it doesn't need a GL context.
+ */
+public class ConvexHull {
+
+	//Relative to the size of the model
+	private static final double TOLERANCE = 1e-6;
+
+	public static final int MAX_VERTICES = 4096;
+
+	private static class Face {
+		final int a, b, c;
+		double nx, ny, nz, offset;
+		int[] outside = new int[4];
+		int outsideCount = 0;
+		boolean deleted = false;
+
+		Face(int a, int b, int c) {
+			this.a = a;
+			this.b = b;
+			this.c = c;
+		}
+
+		void addOutside(int point) {
+			if (outsideCount == outside.length) {
+				int[] grown = new int[outside.length * 2];
+				System.arraycopy(outside, 0, grown, 0, outsideCount);
+				outside = grown;
+			}
+			outside[outsideCount++] = point;
+		}
+	}
+
+	private final float[] mPoints;
+	private final double mEpsilon;
+	private List<Face> mFaces = new ArrayList<Face>();
+
+	private ConvexHull(float[] points) {
+		mPoints = points;
+
+		double maxX = 0, maxY = 0, maxZ = 0;
+		for (int i = 0; i < points.length; i += 3) {
+			maxX = Math.max(maxX, Math.abs(points[i]));
+			maxY = Math.max(maxY, Math.abs(points[i + 1]));
+			maxZ = Math.max(maxZ, Math.abs(points[i + 2]));
+		}
+		mEpsilon = TOLERANCE * (maxX + maxY + maxZ);
+	}
+
+	/**
+	 * @param points 3 coordinates per point
+	 * @return coordinates of the hull vertices, or null if the points are all on a plane and have no 3D hull
+	 * or the hull has more than MAX_VERTICES
+	 */
+	public static float[] compute(float[] points) {
+		ConvexHull hull = new ConvexHull(points);
+		if (!hull.build()) return null;
+
+		return hull.getVertices();
+	}
+
+	private boolean build() {
+		int count = mPoints.length / 3;
+		if (count < 4) return false;
+
+		//Initial tetrahedron from the extreme points
+		int[] extremes = new int[6];
+		for (int i = 1; i < count; i++) {
+			for (int k = 0; k < 3; k++) {
+				if (mPoints[i * 3 + k] < mPoints[extremes[k] * 3 + k]) extremes[k] = i;
+				if (mPoints[i * 3 + k] > mPoints[extremes[k + 3] * 3 + k]) extremes[k + 3] = i;
+			}
+		}
+
+		int p0 = 0, p1 = 0;
+		double best = -1;
+		for (int k = 0; k < 3; k++) {
+			double d = distanceSquared(extremes[k], extremes[k + 3]);
+			if (d > best) {
+				best = d;
+				p0 = extremes[k];
+				p1 = extremes[k + 3];
+			}
+		}
+		if (best <= mEpsilon * mEpsilon) return false;
+
+		//Farthest from the line p0-p1
+		int p2 = -1;
+		best = mEpsilon * mEpsilon;
+		for (int i = 0; i < count; i++) {
+			double[] cross = cross(p0, p1, i);
+			double d = cross[0] * cross[0] + cross[1] * cross[1] + cross[2] * cross[2];
+			if (d > best) {
+				best = d;
+				p2 = i;
+			}
+		}
+		if (p2 < 0) return false;
+
+		//Farthest from the plane p0-p1-p2
+		Face base = createFace(p0, p1, p2);
+		int p3 = -1;
+		best = mEpsilon;
+		for (int i = 0; i < count; i++) {
+			double d = Math.abs(distance(base, i));
+			if (d > best) {
+				best = d;
+				p3 = i;
+			}
+		}
+		if (p3 < 0) return false;
+
+		//Faces pointing out of the tetrahedron
+		if (distance(base, p3) > 0) {
+			mFaces.add(createFace(p0, p2, p1));
+			mFaces.add(createFace(p0, p1, p3));
+			mFaces.add(createFace(p1, p2, p3));
+			mFaces.add(createFace(p2, p0, p3));
+		} else {
+			mFaces.add(base);
+			mFaces.add(createFace(p0, p3, p1));
+			mFaces.add(createFace(p1, p3, p2));
+			mFaces.add(createFace(p2, p3, p0));
+		}
+
+		for (int i = 0; i < count; i++) assign(i, mFaces);
+
+		//Add the farthest point of a face at a time until no point is outside
+		int vertices = 4;
+		Face face;
+		while ((face = nextFace()) != null) {
+			if (++vertices > MAX_VERTICES) return false;
+			addPoint(farthest(face));
+		}
+
+		return true;
+	}
+
+	private Face nextFace() {
+		for (Face face : mFaces) {
+			if (!face.deleted && face.outsideCount > 0) return face;
+		}
+		return null;
+	}
+
+	private int farthest(Face face) {
+		int point = face.outside[0];
+		double best = distance(face, point);
+
+		for (int i = 1; i < face.outsideCount; i++) {
+			double d = distance(face, face.outside[i]);
+			if (d > best) {
+				best = d;
+				point = face.outside[i];
+			}
+		}
+		return point;
+	}
+
+	private void addPoint(int eye) {
+		List<Face> visible = new ArrayList<Face>();
+		for (Face face : mFaces) {
+			if (distance(face, eye) > mEpsilon) visible.add(face);
+		}
+
+		//Edges of the visible region, those not shared by two visible faces
+		Map<Long, int[]> horizon = new HashMap<Long, int[]>();
+		for (Face face : visible) {
+			addEdge(horizon, face.a, face.b);
+			addEdge(horizon, face.b, face.c);
+			addEdge(horizon, face.c, face.a);
+			face.deleted = true;
+		}
+
+		List<Face> created = new ArrayList<Face>();
+		for (int[] edge : horizon.values()) created.add(createFace(edge[0], edge[1], eye));
+
+		//The points outside the removed faces are either outside a new one or inside the hull
+		for (Face face : visible) {
+			for (int i = 0; i < face.outsideCount; i++) {
+				if (face.outside[i] != eye) assign(face.outside[i], created);
+			}
+		}
+
+		List<Face> faces = new ArrayList<Face>(mFaces.size() + created.size());
+		for (Face face : mFaces) {
+			if (!face.deleted) faces.add(face);
+		}
+		faces.addAll(created);
+		mFaces = faces;
+	}
+
+	private void addEdge(Map<Long, int[]> edges, int from, int to) {
+		//Shared edges are visited once in each direction
+		if (edges.remove(edgeKey(to, from)) == null) edges.put(edgeKey(from, to), new int[] { from, to });
+	}
+
+	private static long edgeKey(int from, int to) {
+		return ((long) from << 32) | (to & 0xffffffffL);
+	}
+
+	private void assign(int point, List<Face> faces) {
+		for (Face face : faces) {
+			if (distance(face, point) > mEpsilon) {
+				face.addOutside(point);
+				return;
+			}
+		}
+	}
+
+	private float[] getVertices() {
+		boolean[] used = new boolean[mPoints.length / 3];
+		int count = 0;
+
+		for (Face face : mFaces) {
+			for (int v : new int[] { face.a, face.b, face.c }) {
+				if (!used[v]) {
+					used[v] = true;
+					count++;
+				}
+			}
+		}
+
+		float[] vertices = new float[count * 3];
+		int pos = 0;
+		for (int i = 0; i < used.length; i++) {
+			if (used[i]) {
+				System.arraycopy(mPoints, i * 3, vertices, pos, 3);
+				pos += 3;
+			}
+		}
+		return vertices;
+	}
+
+	private Face createFace(int a, int b, int c) {
+		Face face = new Face(a, b, c);
+
+		double[] normal = cross(a, b, c);
+		double length = Math.sqrt(normal[0] * normal[0] + normal[1] * normal[1] + normal[2] * normal[2]);
+
+		//Degenerate faces have no side, no point is ever outside them
+		if (length > 0) {
+			face.nx = normal[0] / length;
+			face.ny = normal[1] / length;
+			face.nz = normal[2] / length;
+		}
+		face.offset = face.nx * mPoints[a * 3] + face.ny * mPoints[a * 3 + 1] + face.nz * mPoints[a * 3 + 2];
+
+		return face;
+	}
+
+	//Signed distance, positive outside
+	private double distance(Face face, int point) {
+		int k = point * 3;
+		return face.nx * mPoints[k] + face.ny * mPoints[k + 1] + face.nz * mPoints[k + 2] - face.offset;
+	}
+
+	//(b - a) x (c - a)
+	private double[] cross(int a, int b, int c) {
+		double ax = mPoints[b * 3] - mPoints[a * 3];
+		double ay = mPoints[b * 3 + 1] - mPoints[a * 3 + 1];
+		double az = mPoints[b * 3 + 2] - mPoints[a * 3 + 2];
+		double bx = mPoints[c * 3] - mPoints[a * 3];
+		double by = mPoints[c * 3 + 1] - mPoints[a * 3 + 1];
+		double bz = mPoints[c * 3 + 2] - mPoints[a * 3 + 2];
+
+		return new double[] { ay * bz - az * by, az * bx - ax * bz, ax * by - ay * bx };
+	}
+
+	private double distanceSquared(int a, int b) {
+		double dx = mPoints[a * 3] - mPoints[b * 3];
+		double dy = mPoints[a * 3 + 1] - mPoints[b * 3 + 1];
+		double dz = mPoints[a * 3 + 2] - mPoints[b * 3 + 2];
+		return dx * dx + dy * dy + dz * dz;
+	}
+}
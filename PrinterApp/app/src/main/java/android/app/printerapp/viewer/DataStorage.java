@@ -4,20 +4,35 @@ import android.app.printerapp.Log;
 import android.app.printerapp.viewer.Geometry.Point;
 import android.opengl.Matrix;
 
-import java.util.ArrayList;
-import java.util.List;
-
 public class DataStorage {		
-	private List<Float> mVertexList = new ArrayList<Float>();
-	private List<Float> mNormalList = new ArrayList<Float>();
-	private List<Integer> mLineLengthList = new ArrayList<Integer>();
-	private List<Integer> mLayerList = new ArrayList<Integer>();
-	private List<Integer> mTypeList = new ArrayList<Integer>();
+	private ChunkedFloatArray mVertexList = new ChunkedFloatArray();
+	private ChunkedFloatArray mNormalList = new ChunkedFloatArray();
+	private ChunkedIntArray mLineLengthList = new ChunkedIntArray();
+	private ChunkedIntArray mLayerList = new ChunkedIntArray();
+	private ChunkedByteArray mTypeList = new ChunkedByteArray();
 	
 	private float[] mVertexArray;
 	private float[] mNormalArray;
 	private int [] mLayerArray;
-	private int[] mTypeArray;
+	private byte[] mTypeArray;
+	private int[] mLineLengthArray = new int[0];
+	//Only for welded STL meshes, null if the vertex array has one vertex per triangle corner
+	private int[] mIndexArray;
+	//Reduced mesh drawn while the scene is moving, null for small models. Built by a background thread.
+	private volatile IndexedMesh mLodMesh;
+	//Convex hull vertices, enough to get the bounds in any rotation. Null until built or if the hull is too big.
+	private volatile float[] mHullArray;
+	//Triangle hierarchy for exact picking, null until built
+	private volatile TriangleBvh mBvh;
+	//Model that owns the mesh arrays and what is built from them, this one or the model it was copied from.
+	//They are never edited once the model is loaded, so all the copies share them and their GPU buffers.
+	private DataStorage mGeometry = this;
+
+	//Layer index, see buildLayerIndex()
+	private int[] mLineStartArray;
+	private int[] mLayerVertexCount;
+	private int[] mLayerFirstLine;
+	private int mIndexMinLayer;
 		
 	private int mMaxLayer;
 	private int mActualLayer;
@@ -56,6 +71,10 @@ public class DataStorage {
 	private float mAdjustZ;
 
     public static final double MIN_Z = 0.1;
+
+	//Smaller models are drawn at full resolution all the time
+	private static final int LOD_MIN_TRIANGLES = 200000;
+	private static final int LOD_TRIANGLES = 100000;
 	
 	public DataStorage () {
 		Matrix.setIdentityM(mRotationMatrix, 0);
@@ -63,18 +82,16 @@ public class DataStorage {
 	}
 	
 
+	/**
+	 * Make this model another instance of d: the geometry is shared, only the placement is copied
+	 */
 	public void copyData (DataStorage d) {
-		for (int i=0; i<d.getLineLengthList().size(); i++) mLineLengthList.add(d.getLineLengthList().get(i));
-	
-		mVertexArray = new float[d.getVertexArray().length];
-		for (int i=0; i<d.getVertexArray().length; i++) {
-			mVertexArray[i] = d.getVertexArray()[i];
-		}
-		
-		mNormalArray = new float[d.getNormalArray().length];
-		for (int i=0; i<d.getNormalArray().length; i++) {
-			mNormalArray[i] = d.getNormalArray()[i];
-		}
+		mGeometry = d.getGeometry();
+
+		mLineLengthArray = d.getLineLengthArray();
+		mVertexArray = d.getVertexArray();
+		mNormalArray = d.getNormalArray();
+		mIndexArray = d.getIndexArray();
 
 		mMaxLayer = d.getMaxLayer();
 		mActualLayer = d.getActualLayer();
@@ -121,7 +138,7 @@ public class DataStorage {
 	}
 
 	public void addType (int type) {
-		mTypeList.add(type);
+		mTypeList.add((byte) type);
 	}
 	
 	public void addNormal (float normal) {
@@ -133,8 +150,17 @@ public class DataStorage {
 		mLineLengthList.add(length);
 	}
 	
+	/**
+	 * Size the vertex and normal lists of a model whose triangle count is known before loading it,
+	 * so filling the arrays hands them over instead of copying them
+	 */
+	public void reserveTriangles (int triangles) {
+		mVertexList.reserve(triangles * TRIANGLE_VERTEX * 3);
+		mNormalList.reserve(triangles * 3);
+	}
+	
 	public void fillVertexArray (boolean center) {
-		mVertexArray = new float [mVertexList.size()];
+		mVertexArray = mVertexList.freeze();
 
 		centerSTL(center);
 	}
@@ -168,10 +194,11 @@ public class DataStorage {
 
         Log.i("PrintView", distZ + "");
 				
-		for (int i = 0; i < mVertexList.size(); i=i+3) {
-		    mVertexArray[i] = mVertexList.get(i)   - distX;
-			mVertexArray[i+1] = mVertexList.get(i+1) - distY;
-			mVertexArray[i+2] = mVertexList.get(i+2) - distZ;		
+		//The vertex array is already filled, move it in place
+		for (int i = 0; i < mVertexArray.length; i=i+3) {
+		    mVertexArray[i] -= distX;
+			mVertexArray[i+1] -= distY;
+			mVertexArray[i+2] -= distZ;
 		}
 		
 		//Adjust max, min
@@ -206,21 +233,218 @@ public class DataStorage {
 		}
 	}
 	
-	public void fillLayerArray () {
-		mLayerArray = new int [mLayerList.size()];
+	/**
+	 * Alternative to fillNormalArray for STL files: weld the corners of the triangles already in the
+	 * vertex array into shared vertices with their own normals, and fill the index array.
+	 */
+	public void fillIndexedMesh () {
+		IndexedMesh mesh = new IndexedMesh(mVertexArray);
 		
-		for (int i=0; i<mLayerList.size(); i++) {
-			mLayerArray[i] = mLayerList.get(i);
-		}
+		mVertexArray = mesh.getVertexArray();
+		mNormalArray = mesh.getNormalArray();
+		mIndexArray = mesh.getIndexArray();
+	}
+	
+	/**
+	 * Reduced mesh of a big STL for drawing while the user moves the scene. Slow, to be called
+	 * from a background thread once the model is loaded; the full mesh is still the one saved.
+	 */
+	public void buildLodMesh () {
+		if (mVertexArray == null || getTriangleCount() < LOD_MIN_TRIANGLES) return;
+		
+		long time = System.currentTimeMillis();
+		mLodMesh = MeshDecimator.decimate(mVertexArray, mIndexArray, LOD_TRIANGLES);
+		
+		if (mLodMesh != null) Log.i("DataStorage", "LOD of " + getTriangleCount() + " triangles reduced to " 
+				+ mLodMesh.getIndexArray().length / TRIANGLE_VERTEX + " in " + (System.currentTimeMillis() - time) + " ms");
+	}
+	
+	public IndexedMesh getLodMesh () {
+		return mGeometry.mLodMesh;
+	}
+	
+	/**
+	 * Convex hull of the STL vertices, so rotated bounds don't have to go over the whole mesh.
+	 * To be called from a background thread once the model is loaded.
+	 */
+	public void buildHull () {
+		if (mVertexArray == null) return;
+		
+		long time = System.currentTimeMillis();
+		mHullArray = ConvexHull.compute(mVertexArray);
+		
+		if (mHullArray != null) Log.i("DataStorage", "Hull of " + mVertexArray.length / 3 + " vertices has " 
+				+ mHullArray.length / 3 + ", built in " + (System.currentTimeMillis() - time) + " ms");
+	}
+	
+	/**
+	 * Triangle hierarchy for picking. To be called from a background thread once the model is loaded.
+	 */
+	public void buildBvh () {
+		if (mVertexArray == null) return;
 		
+		long time = System.currentTimeMillis();
+		mBvh = new TriangleBvh(mVertexArray, mIndexArray);
+		
+		Log.i("DataStorage", "BVH of " + getTriangleCount() + " triangles built in " + (System.currentTimeMillis() - time) + " ms");
+	}
+	
+	public TriangleBvh getBvh () {
+		return mGeometry.mBvh;
+	}
+	
+	public float[] getHullArray () {
+		return mGeometry.mHullArray;
+	}
+
+	/**
+	 * Model owning the geometry of this one, itself unless it's a copy. Key of the GPU buffers.
+	 */
+	public DataStorage getGeometry () {
+		return mGeometry;
+	}
+	
+	/**
+	 * Points whose bounds are the bounds of the model in any rotation, the hull if there is one
+	 */
+	public float[] getBoundingPoints () {
+		float[] hull = getHullArray();
+		return (hull != null) ? hull : mVertexArray;
+	}
+	
+	public void fillLayerArray () {
+		mLayerArray = mLayerList.freeze();
+		mLayerVertexCount = null;
 	}
 	
 	public void fillTypeArray () {
-		mTypeArray = new int [mTypeList.size()];
+		mTypeArray = mTypeList.freeze();
+	}
+	
+	public void fillLineLengthArray () {
+		mLineLengthArray = mLineLengthList.freeze();
+		mLayerVertexCount = null;
+	}
+	
+	public void setVertexArray (float[] vertexArray) {
+		mVertexArray = vertexArray;
+	}
+	
+	public void setLayerArray (int[] layerArray) {
+		mLayerArray = layerArray;
+		mLayerVertexCount = null;
+	}
+	
+	public void setTypeArray (byte[] typeArray) {
+		mTypeArray = typeArray;
+	}
+	
+	public void setLineLengthArray (int[] lineLengthArray) {
+		mLineLengthArray = lineLengthArray;
+		mLayerVertexCount = null;
+	}
+	
+	/**
+	 * Build the tables that resolve a range of layers without going through the whole arrays:
+	 *  - Vertex count: number of vertices from the first layer up to each layer (prefix sum of a layer histogram).
+	 *  - Line start: first vertex of every polyline, with the total number of vertices at the end.
+	 *  - First line: for each layer, the first polyline starting after the vertices of the previous layers.
+	 * The layer and line length arrays must be filled.
+	 */
+	public void buildLayerIndex () {
+		int minLayer = 0;
+		int maxLayer = 0;
+
+		if (mLayerArray.length > 0) {
+			minLayer = Integer.MAX_VALUE;
+			maxLayer = Integer.MIN_VALUE;
+			for (int layer : mLayerArray) {
+				if (layer < minLayer) minLayer = layer;
+				if (layer > maxLayer) maxLayer = layer;
+			}
+		}
+
+		int[] vertexCount = new int[maxLayer - minLayer + 1];
+		for (int layer : mLayerArray) vertexCount[layer - minLayer]++;
+		for (int i = 1; i < vertexCount.length; i++) vertexCount[i] += vertexCount[i-1];
+
+		int[] lineStart = new int[mLineLengthArray.length + 1];
+		for (int i = 0; i < mLineLengthArray.length; i++) lineStart[i+1] = lineStart[i] + mLineLengthArray[i];
+
+		//Both tables are increasing, a single walk fills the first line of every layer
+		int[] firstLine = new int[vertexCount.length];
+		int line = 0;
+		for (int i = 1; i < firstLine.length; i++) {
+			while (line < mLineLengthArray.length && lineStart[line] < vertexCount[i-1]) line++;
+			firstLine[i] = line;
+		}
+
+		mIndexMinLayer = minLayer;
+		mLayerVertexCount = vertexCount;
+		mLineStartArray = lineStart;
+		mLayerFirstLine = firstLine;
+	}
+	
+	public boolean hasLayerIndex () {
+		return mLayerVertexCount != null;
+	}
+	
+	/**
+	 * Number of vertices from the first layer up to this one, included
+	 */
+	public int getVertexCountUpToLayer (int layer) {
+		if (layer < mIndexMinLayer) return 0;
+		if (layer - mIndexMinLayer >= mLayerVertexCount.length) return mLayerVertexCount[mLayerVertexCount.length - 1];
 		
-		for (int i=0; i<mTypeList.size(); i++) {
-			mTypeArray [i] = mTypeList.get(i);
-		}		
+		return mLayerVertexCount[layer - mIndexMinLayer];
+	}
+	
+	/**
+	 * Index of the first polyline of this layer, every polyline before it starts in a previous layer
+	 */
+	public int getFirstLineOfLayer (int layer) {
+		if (layer <= mIndexMinLayer) return 0;
+		if (layer - mIndexMinLayer >= mLayerFirstLine.length) return mLineLengthArray.length;
+		
+		return mLayerFirstLine[layer - mIndexMinLayer];
+	}
+	
+	/**
+	 * First vertex of every polyline, the last element is the total number of vertices
+	 */
+	public int[] getLineStartArray () {
+		return mLineStartArray;
+	}
+	
+	/**
+	 * Approximate heap used by the final arrays, in bytes. Nothing for copies, the arrays belong to the original.
+	 */
+	public long getMemorySize () {
+		long size = 0;
+		if (mGeometry != this) return size;
+
+		if (mVertexArray != null) size += mVertexArray.length * 4L;
+		if (mNormalArray != null) size += mNormalArray.length * 4L;
+		if (mLayerArray != null) size += mLayerArray.length * 4L;
+		if (mTypeArray != null) size += mTypeArray.length;
+		if (mLineLengthArray != null) size += mLineLengthArray.length * 4L;
+		if (mIndexArray != null) size += mIndexArray.length * 4L;
+		if (mHullArray != null) size += mHullArray.length * 4L;
+		if (mBvh != null) size += mBvh.getMemorySize();
+		IndexedMesh lod = mLodMesh;
+		if (lod != null) size += (lod.getVertexArray().length + lod.getNormalArray().length + lod.getIndexArray().length) * 4L;
+		if (mLayerVertexCount != null) size += (mLineStartArray.length + mLayerVertexCount.length + mLayerFirstLine.length) * 4L;
+
+		return size;
+	}
+	
+	public int[] getIndexArray () {
+		return mIndexArray;
+	}
+	
+	public int getTriangleCount () {
+		if (mIndexArray != null) return mIndexArray.length / TRIANGLE_VERTEX;
+		return mVertexArray.length / (TRIANGLE_VERTEX * 3);
 	}
 	
 	public float[] getVertexArray () {
@@ -231,7 +455,7 @@ public class DataStorage {
 		return mNormalArray;
 	}
 	
-	public int[] getTypeArray() {
+	public byte[] getTypeArray() {
 		return mTypeArray;
 	}
 	
@@ -255,12 +479,16 @@ public class DataStorage {
 		mTypeList.clear();
 	}
 	
-	public List<Integer> getLineLengthList () {
-		return mLineLengthList;
+	public void clearLineLengthList() {
+		mLineLengthList.clear();
+	}
+	
+	public int[] getLineLengthArray () {
+		return mLineLengthArray;
 	}
 	
 	public void changeTypeAtIndex (int index, int type) {
-		mTypeList.set(index, type);
+		mTypeList.set(index, (byte) type);
 	}
 	
 	public int getTypeListSize () {
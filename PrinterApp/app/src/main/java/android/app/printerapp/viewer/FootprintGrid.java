@@ -0,0 +1,131 @@
+package android.app.printerapp.viewer;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Uniform grid over the plate with the XY footprint of every model, so overlap checks only look at the models
+ * in the cells a footprint covers instead of the whole list.
+ *
+ * Footprints outside the plate are kept in the border cells. Models are found by identity, the grid is updated
+ * when one moves, is scaled or deleted, and sync() catches up with any other change of the list.
+ */
+public class FootprintGrid {
+
+	//Side of a cell in mm, around the size of a small part
+	private static final float CELL_SIZE = 20f;
+
+	private final float mOriginX;
+	private final float mOriginY;
+	private final int mColumns;
+	private final int mRows;
+	private final List<DataStorage>[] mCells;
+
+	//Footprint each model was indexed with: minX, minY, maxX, maxY
+	private final Map<DataStorage, float[]> mIndexed = new IdentityHashMap<DataStorage, float[]>();
+
+	@SuppressWarnings("unchecked")
+	public FootprintGrid(int[] plate) {
+		mOriginX = -plate[0];
+		mOriginY = -plate[1];
+		mColumns = Math.max(1, (int) Math.ceil(plate[0] * 2 / CELL_SIZE));
+		mRows = Math.max(1, (int) Math.ceil(plate[1] * 2 / CELL_SIZE));
+
+		mCells = new List[mColumns * mRows];
+		for (int i = 0; i < mCells.length; i++) mCells[i] = new ArrayList<DataStorage>();
+	}
+
+	/**
+	 * Index the current footprint of the model, if it changed
+	 */
+	public void update(DataStorage d) {
+		float[] old = mIndexed.get(d);
+		if (old != null) {
+			if (old[0] == d.getMinX() && old[1] == d.getMinY() && old[2] == d.getMaxX() && old[3] == d.getMaxY()) return;
+			removeFromCells(d, old);
+		}
+
+		float[] footprint = { d.getMinX(), d.getMinY(), d.getMaxX(), d.getMaxY() };
+		mIndexed.put(d, footprint);
+
+		int fromColumn = column(footprint[0]);
+		int toColumn = column(footprint[2]);
+		int fromRow = row(footprint[1]);
+		int toRow = row(footprint[3]);
+
+		for (int r = fromRow; r <= toRow; r++) {
+			for (int c = fromColumn; c <= toColumn; c++) mCells[r * mColumns + c].add(d);
+		}
+	}
+
+	public void remove(DataStorage d) {
+		float[] old = mIndexed.remove(d);
+		if (old != null) removeFromCells(d, old);
+	}
+
+	/**
+	 * Update every model of the list and drop the ones that are no longer in it
+	 */
+	public void sync(List<DataStorage> objects) {
+		for (DataStorage d : objects) update(d);
+		if (mIndexed.size() == objects.size()) return;
+
+		Map<DataStorage, Boolean> current = new IdentityHashMap<DataStorage, Boolean>();
+		for (DataStorage d : objects) current.put(d, Boolean.TRUE);
+
+		List<DataStorage> removed = new ArrayList<DataStorage>();
+		for (DataStorage d : mIndexed.keySet()) {
+			if (!current.containsKey(d)) removed.add(d);
+		}
+		for (DataStorage d : removed) remove(d);
+	}
+
+	/**
+	 * Whether the footprint overlaps any indexed model other than the excluded one
+	 */
+	public boolean overlaps(float maxX, float minX, float maxY, float minY, DataStorage exclude) {
+		int fromColumn = column(minX);
+		int toColumn = column(maxX);
+		int fromRow = row(minY);
+		int toRow = row(maxY);
+
+		for (int r = fromRow; r <= toRow; r++) {
+			for (int c = fromColumn; c <= toColumn; c++) {
+				for (DataStorage d : mCells[r * mColumns + c]) {
+					if (d != exclude && Geometry.overlaps(maxX, minX, maxY, minY, d)) return true;
+				}
+			}
+		}
+
+		return false;
+	}
+
+	private void removeFromCells(DataStorage d, float[] footprint) {
+		int fromColumn = column(footprint[0]);
+		int toColumn = column(footprint[2]);
+		int fromRow = row(footprint[1]);
+		int toRow = row(footprint[3]);
+
+		for (int r = fromRow; r <= toRow; r++) {
+			for (int c = fromColumn; c <= toColumn; c++) {
+				List<DataStorage> cell = mCells[r * mColumns + c];
+				for (int i = 0; i < cell.size(); i++) {
+					if (cell.get(i) == d) {
+						cell.remove(i);
+						break;
+					}
+				}
+			}
+		}
+	}
+
+	private int column(float x) {
+		return Math.max(0, Math.min(mColumns - 1, (int) Math.floor((x - mOriginX) / CELL_SIZE)));
+	}
+
+	private int row(float y) {
+		return Math.max(0, Math.min(mRows - 1, (int) Math.floor((y - mOriginY) / CELL_SIZE)));
+	}
+}
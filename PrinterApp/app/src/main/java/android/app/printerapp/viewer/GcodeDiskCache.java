@@ -0,0 +1,264 @@
+package android.app.printerapp.viewer;
+
+import android.app.printerapp.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Persistent binary cache of parsed G-code geometry (".gcache" files).
+ *
+ * Stores the final vertex, layer, type and line length arrays together with the max layer, line count and bounds,
+ * so a G-code that was already opened is read back with one memory mapping instead of being parsed again.
+ * An entry is only valid for the same file path, size, modification date and plate offsets.
+ *
+ * Entries are kept in the app cache folder instead of next to the G-code because project folders
+ * are expected to contain a single file per type (see LibraryController.retrieveFile).
+ */
+public class GcodeDiskCache {
+
+	private static final String TAG = "GcodeDiskCache";
+
+	public static final String EXTENSION = ".gcache";
+
+	private static final int MAGIC = 0x47434348; //"GCCH"
+	private static final int VERSION = 1;
+
+	private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+	//Oldest entries are deleted above this size
+	private static final long MAX_CACHE_SIZE = 256 * 1024 * 1024;
+
+	private static File getCacheFile(File cacheDir, File gcode) {
+		return new File(cacheDir, Integer.toHexString(gcode.getAbsolutePath().hashCode()) + EXTENSION);
+	}
+
+	/**
+	 * Fill the data arrays from the cache if there is a valid entry for this file.
+	 *
+	 * @return true if the data was loaded
+	 */
+	public static boolean load(File cacheDir, File gcode, DataStorage data, float offsetX, float offsetY) {
+		if (cacheDir == null) return false;
+
+		File cacheFile = getCacheFile(cacheDir, gcode);
+		if (!cacheFile.exists()) return false;
+
+		FileInputStream fis = null;
+
+		try {
+			fis = new FileInputStream(cacheFile);
+			FileChannel channel = fis.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) return false;
+			if (buffer.getLong() != gcode.length() || buffer.getLong() != gcode.lastModified()) return false;
+			if (buffer.getFloat() != offsetX || buffer.getFloat() != offsetY) return false;
+
+			byte[] path = new byte[buffer.getInt()];
+			buffer.get(path);
+			if (!new String(path, "UTF-8").equals(gcode.getAbsolutePath())) return false;
+			buffer.position(align(buffer.position()));
+
+			int maxLayer = buffer.getInt();
+			int lines = buffer.getInt();
+
+			float minX = buffer.getFloat();
+			float maxX = buffer.getFloat();
+			float minY = buffer.getFloat();
+			float maxY = buffer.getFloat();
+			float minZ = buffer.getFloat();
+			float maxZ = buffer.getFloat();
+
+			float[] vertexArray = new float[buffer.getInt()];
+			int[] layerArray = new int[buffer.getInt()];
+			int[] lineLengthArray = new int[buffer.getInt()];
+			byte[] typeArray = new byte[buffer.getInt()];
+
+			buffer.asFloatBuffer().get(vertexArray);
+			buffer.position(buffer.position() + vertexArray.length * 4);
+			buffer.asIntBuffer().get(layerArray);
+			buffer.position(buffer.position() + layerArray.length * 4);
+			buffer.asIntBuffer().get(lineLengthArray);
+			buffer.position(buffer.position() + lineLengthArray.length * 4);
+			buffer.get(typeArray);
+
+			data.setVertexArray(vertexArray);
+			data.setLayerArray(layerArray);
+			data.setLineLengthArray(lineLengthArray);
+			data.setTypeArray(typeArray);
+
+			data.setMinX(minX);
+			data.setMaxX(maxX);
+			data.setMinY(minY);
+			data.setMaxY(maxY);
+			data.setMinZ(minZ);
+			data.setMaxZ(maxZ);
+
+			data.setMaxLayer(maxLayer);
+			data.setMaxLinesFile(lines);
+
+			//Used as last access time for the trimming
+			cacheFile.setLastModified(System.currentTimeMillis());
+
+			return true;
+
+		} catch (Exception e) {
+			//Truncated or corrupted entry, it will be parsed and written again
+			Log.e(TAG, "Invalid cache entry " + cacheFile.getName() + ": " + e.toString());
+			return false;
+
+		} finally {
+			if (fis != null) {
+				try {
+					fis.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write the arrays of an already loaded G-code. The entry is written to a temporary file and renamed,
+	 * so a half written entry is never read.
+	 */
+	public static void save(File cacheDir, File gcode, DataStorage data, float offsetX, float offsetY) {
+		if (cacheDir == null || data.getVertexArray() == null) return;
+
+		File cacheFile = getCacheFile(cacheDir, gcode);
+		File tmpFile = new File(cacheDir, cacheFile.getName() + ".tmp");
+
+		FileOutputStream fos = null;
+
+		try {
+			fos = new FileOutputStream(tmpFile);
+			FileChannel channel = fos.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+			byte[] path = gcode.getAbsolutePath().getBytes("UTF-8");
+
+			buffer.putInt(MAGIC);
+			buffer.putInt(VERSION);
+			buffer.putLong(gcode.length());
+			buffer.putLong(gcode.lastModified());
+			buffer.putFloat(offsetX);
+			buffer.putFloat(offsetY);
+
+			buffer.putInt(path.length);
+			buffer.put(path);
+			//Nothing was flushed yet, so the buffer position is the file offset
+			while (buffer.position() != align(buffer.position())) buffer.put((byte) 0);
+
+			buffer.putInt(data.getMaxLayer());
+			buffer.putInt(data.getMaxLinesFile());
+
+			buffer.putFloat(data.getMinX());
+			buffer.putFloat(data.getMaxX());
+			buffer.putFloat(data.getMinY());
+			buffer.putFloat(data.getMaxY());
+			buffer.putFloat(data.getMinZ());
+			buffer.putFloat(data.getMaxZ());
+
+			float[] vertexArray = data.getVertexArray();
+			int[] layerArray = data.getLayerArray();
+			int[] lineLengthArray = data.getLineLengthArray();
+			byte[] typeArray = data.getTypeArray();
+
+			buffer.putInt(vertexArray.length);
+			buffer.putInt(layerArray.length);
+			buffer.putInt(lineLengthArray.length);
+			buffer.putInt(typeArray.length);
+
+			for (float f : vertexArray) {
+				if (buffer.remaining() < 4) flush(channel, buffer);
+				buffer.putFloat(f);
+			}
+			for (int i : layerArray) {
+				if (buffer.remaining() < 4) flush(channel, buffer);
+				buffer.putInt(i);
+			}
+			for (int i : lineLengthArray) {
+				if (buffer.remaining() < 4) flush(channel, buffer);
+				buffer.putInt(i);
+			}
+			for (byte b : typeArray) {
+				if (!buffer.hasRemaining()) flush(channel, buffer);
+				buffer.put(b);
+			}
+			flush(channel, buffer);
+
+			fos.close();
+			fos = null;
+
+			if (!tmpFile.renameTo(cacheFile)) tmpFile.delete();
+
+			trim(cacheDir);
+
+		} catch (IOException e) {
+			//Not enough space or no permission, the G-code will just be parsed next time
+			Log.e(TAG, "Could not write cache entry: " + e.toString());
+			tmpFile.delete();
+
+		} finally {
+			if (fos != null) {
+				try {
+					fos.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) channel.write(buffer);
+		buffer.clear();
+	}
+
+	private static int align(int position) {
+		return (position + 3) & ~3;
+	}
+
+	/**
+	 * Delete the least recently used entries until the cache fits in MAX_CACHE_SIZE
+	 */
+	private static void trim(File cacheDir) {
+		File[] entries = cacheDir.listFiles();
+		if (entries == null) return;
+
+		long total = 0;
+		for (File f : entries) {
+			if (f.getName().endsWith(EXTENSION)) total += f.length();
+		}
+		if (total <= MAX_CACHE_SIZE) return;
+
+		Arrays.sort(entries, new Comparator<File>() {
+			@Override
+			public int compare(File lhs, File rhs) {
+				long l = lhs.lastModified();
+				long r = rhs.lastModified();
+				return l < r ? -1 : (l == r ? 0 : 1);
+			}
+		});
+
+		for (File f : entries) {
+			if (total <= MAX_CACHE_SIZE) break;
+			if (!f.getName().endsWith(EXTENSION)) continue;
+
+			total -= f.length();
+			f.delete();
+		}
+	}
+}
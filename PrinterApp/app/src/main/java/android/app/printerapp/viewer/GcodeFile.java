@@ -1,6 +1,5 @@
 package android.app.printerapp.viewer;
 
-import android.annotation.SuppressLint;
 import android.app.AlertDialog;
 import android.app.printerapp.Log;
 import android.app.printerapp.R;
@@ -15,9 +14,8 @@ import android.widget.LinearLayout;
 
 import com.alertdialogpro.ProgressDialogPro;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
+import java.io.IOException;
 
 public class GcodeFile  {
 	private static final String TAG = "gcode";
@@ -29,15 +27,19 @@ public class GcodeFile  {
 	private static ProgressDialogPro mProgressDialog;
 	private static Thread mThread;
 	
-	private static String [] mSplitLine;
+	private static GcodeParser mParser;
+	private static ParallelGcodeParser mParallelParser;
 	private static int mMaxLayer;
 	
 	private static int mMode = 0;
 	
 	private static boolean mContinueThread = true;
+
+	private static File mCacheDir;
 	
 	public static void openGcodeFile (Context context, File file, DataStorage data, int mode) {
 		Log.i(TAG, " Open GcodeFile ");
+		mCacheDir = context.getCacheDir();
 		mFile = file;		
 		mData = data;
 		mMode = mode;
@@ -54,28 +56,26 @@ public class GcodeFile  {
 		mThread = new Thread () {
 			@Override
 			public void run () {
-				String line;
-				StringBuilder allLines = new StringBuilder ("");
-
 				try {
-					int maxLines=0;
-					BufferedReader countReader = new BufferedReader(new FileReader(mFile));
+					if(mMode!= ViewerMainFragment.DO_SNAPSHOT) mProgressDialog.setMax(100);
 
-                    float milis = SystemClock.currentThreadTimeMillis();
+					int[] auxPlate = getPlate();
 
-					while ((line = countReader.readLine()) != null && mContinueThread) {
-						allLines.append(line + "\n");
-						maxLines++;
-                       // Log.i("gcode","HI! " + maxLines);
-					}
-					countReader.close();
+					//Already opened before, read the parsed arrays back
+					if (GcodeDiskCache.load(mCacheDir, mFile, mData, auxPlate[0], auxPlate[1])) {
+						Log.i(TAG, "GCODE loaded from cache");
+						mMaxLayer = mData.getMaxLayer();
 
-                    Log.i(TAG, "GCODE Read in: " + (SystemClock.currentThreadTimeMillis() - milis));
-					
+					} else if (mContinueThread) {
+						processGcode();
 
-					if(mMode== ViewerMainFragment.PRINT_PREVIEW) mData.setMaxLinesFile(maxLines);
-					if(mMode!= ViewerMainFragment.DO_SNAPSHOT) mProgressDialog.setMax(maxLines);
-					if (mContinueThread) processGcode(allLines, maxLines);
+						if (mContinueThread && fillArrays()) {
+							GcodeDiskCache.save(mCacheDir, mFile, mData, auxPlate[0], auxPlate[1]);
+						}
+					}
+
+					//Tables used to draw a range of layers without going through every vertex
+					if (mContinueThread && mData.getLayerArray() != null) mData.buildLayerIndex();
 
 					if (mContinueThread) mHandler.sendEmptyMessage(0);
 								
@@ -106,6 +106,8 @@ public class GcodeFile  {
             @Override
             public void onClick(DialogInterface dialog, int which) {
                 mContinueThread = false;
+                if (mParser != null) mParser.cancel();
+                if (mParallelParser != null) mParallelParser.cancel();
                 try {
                     mThread.join();
                 } catch (InterruptedException e) {
@@ -125,126 +127,81 @@ public class GcodeFile  {
         return progressDialog;
 	}
 	
-	@SuppressLint("DefaultLocale")
-	public static void processGcode(StringBuilder allLines, int maxLines) {
-		int index=0;
-		int lastIndex = 0;
-		int lines = 0;
-		String line="";
-		
-		boolean end = false;
-		boolean start = false;
-		float x=0;
-		float y=0;
-		float z=0;
-		int type = -1;
-		int length = 0;
-		int layer = 0;
-
-        float milis = SystemClock.currentThreadTimeMillis();
-
+	private static int[] getPlate() {
         //Default plate size for printview panel
         int[] auxPlate = {WitboxFaces.WITBOX_LONG,WitboxFaces.WITBOX_WITDH,WitboxFaces.WITBOX_HEIGHT};
 
         if (ViewerMainFragment.getCurrentPlate() != null)
          auxPlate = ViewerMainFragment.getCurrentPlate();
 
-		while (lines<maxLines && mContinueThread) {
-
-            //Log.i("gcode","Processing!! " + lines);
-			index = allLines.indexOf("\n", lastIndex);
-			line = allLines.substring(lastIndex, index);
-
-			if (line.contains("END GCODE")) end = true;
-			
-			//if (line.contains("end of START GCODE")) start = true;
-			if (line.toLowerCase().contains("layer count")) start = true;
-			
-			if(line.contains("MOVE")) {
-	        	 type = DataStorage.MOVE;
-	         }else if(line.contains("FILL")) {
-	        	 type = DataStorage.FILL;
-	         }else if(line.contains("PERIMETER")) {
-	        	 type = DataStorage.PERIMETER;
-	         }else if(line.contains("RETRACT")) {
-	        	 type = DataStorage.RETRACT;
-	         }else if(line.contains("COMPENSATE")) {
-	        	 type = DataStorage.COMPENSATE;
-	         }else if(line.contains("BRIDGE")) {
-	        	 type = DataStorage.BRIDGE;
-	         }else if(line.contains("SKIRT")) {
-	        	 type = DataStorage.SKIRT;	            		 
-	         } else if(line.contains("WALL-INNER")) {
-	        	 type = DataStorage.WALL_INNER;	            		 
-	         } else if(line.contains("WALL-OUTER")) {
-	        	 type = DataStorage.WALL_OUTER;	            		 
-	         }  else if(line.contains("SUPPORT")) {
-	        	 type = DataStorage.SUPPORT;	
-	         }
-			
-			//From comments
-			if (line.contains("LAYER")) {
-	        	 int pos = line.indexOf(":");
-	        	 layer = Integer.parseInt(line.substring(pos+1, line.length()));
-			}	 
-					
-			if (line.startsWith("G0") || line.startsWith("G1")) {
-				mSplitLine = line.split(" ");
-				
-				//Get the coord of the line					
-				for (int i=0; i<mSplitLine.length; i++) {
-					if (mSplitLine[i].length()<=1) continue;
-					if (mSplitLine[i].startsWith("X")) {
-						mSplitLine[i] = mSplitLine[i].replace("X", "");
-						x= Float.valueOf(mSplitLine[i])-auxPlate[0]; //TODO
-					} else if (mSplitLine[i].startsWith("Y")) {
-						mSplitLine[i] = mSplitLine[i].replace("Y", "");
-						y = Float.valueOf(mSplitLine[i])-auxPlate[1]; //TODO
-					} else if (mSplitLine[i].startsWith("Z")) {
-						mSplitLine[i] = mSplitLine[i].replace("Z", "");
-						z = Float.valueOf(mSplitLine[i]);
-					} 
-				}
-	
-				 if (line.startsWith("G0")) {
-					 mData.addLineLength(length);
-		             length = 1;
-		            
-				 } else if (line.startsWith("G1")) {
-					 //GCode saves the movement from one type to another (i.e wall_inner-wall_outer) in the list of the previous type. 
-					 //If we have just started a line, we set again the colour of the first vertex to avoid wrong colour
-					 //This avoids gradients in rendering.			 
-					 if (length == 1) mData.changeTypeAtIndex(mData.getTypeListSize()-1, type);
-	
-					 length ++;
-					 
-					
-					 if (start && !end) mData.adjustMaxMin(x,y, z);
-				 }
-		 
-				 mData.addVertex(x);
-				 mData.addVertex(y);
-				 mData.addVertex(z);
-				 mData.addLayer(layer);
-				 mData.addType(type);
-				 			 		 
-				 if (layer>mMaxLayer) mMaxLayer = layer;
-				 		
+		return auxPlate;
+	}
+
+	public static void processGcode() throws IOException {
+        float milis = SystemClock.currentThreadTimeMillis();
+
+        int[] auxPlate = getPlate();
+
+		GcodeParser.ProgressListener listener = new GcodeParser.ProgressListener() {
+			@Override
+			public void onProgress(long bytesRead, long totalBytes) {
+				if (mMode!= ViewerMainFragment.DO_SNAPSHOT && totalBytes > 0)
+					mProgressDialog.setProgress((int) (bytesRead * 100 / totalBytes));
 			}
-					
-			 lines++;
-			 lastIndex = index+1;
+		};
+
+		int lines;
+
+		//Big files are split across all the cores, straight into the final arrays
+		if (ParallelGcodeParser.isWorthParallel(mFile)) {
+			mParallelParser = new ParallelGcodeParser(mData, auxPlate[0], auxPlate[1], Runtime.getRuntime().availableProcessors());
+			mParallelParser.parse(mFile, listener);
+
+			mMaxLayer = mParallelParser.getMaxLayer();
+			lines = mParallelParser.getLineCount();
+		} else {
+			mParser = new GcodeParser(mData, auxPlate[0], auxPlate[1]);
+			mParser.parse(mFile, listener);
 
-			 if (mMode!= ViewerMainFragment.DO_SNAPSHOT && lines % (maxLines/10) == 0)mProgressDialog.setProgress(lines);
+			mMaxLayer = mParser.getMaxLayer();
+			lines = mParser.getLineCount();
 		}
 
-        Log.i(TAG, "GCODE Processed in: " + (SystemClock.currentThreadTimeMillis() - milis));
+		mData.setMaxLinesFile(lines);
+
+        Log.i(TAG, "GCODE Read & Processed in: " + (SystemClock.currentThreadTimeMillis() - milis));
+	}
+
+	/**
+	 * Move the parsed lists to the final arrays, a parallel parse already filled them. Done in the loading
+	 * thread so the cache can be written there too.
+	 *
+	 * @return false if the file had no vertices
+	 */
+	private static boolean fillArrays() {
+		mData.setMaxLayer(mMaxLayer);
+
+		if (mData.getCoordinateListSize() > 0) {
+			mData.fillVertexArray(false);
+			mData.fillTypeArray();
+			mData.fillLayerArray();
+			mData.fillLineLengthArray();
+
+			mData.clearVertexList();
+			mData.clearLayerList();
+			mData.clearTypeList();
+			mData.clearLineLengthList();
+		} else if (mData.getVertexArray() != null) {
+			mData.centerSTL(false);
+		} else return false;
+
+		return true;
 	}
 	
     private static Handler mHandler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
-    		if (mData.getCoordinateListSize() < 1) {
+    		if (mData.getVertexArray() == null || mData.getVertexArray().length < 1) {
     			
     			/**
     			 * If there is an invalid gcode, breaks here for some reason.
@@ -258,17 +215,6 @@ public class GcodeFile  {
     			return;
     		}
     		
-    		mData.setMaxLayer(mMaxLayer);
-     		
-    		mData.fillVertexArray(false);
-    		mData.fillTypeArray();
-    		mData.fillLayerArray();
-    		
-    		mData.clearVertexList();
-    		mData.clearLayerList();
-    		mData.clearTypeList();
-
-
     		if(mMode== ViewerMainFragment.DONT_SNAPSHOT) {
     			ViewerMainFragment.initSeekBar(mMaxLayer);
 	    		ViewerMainFragment.draw();
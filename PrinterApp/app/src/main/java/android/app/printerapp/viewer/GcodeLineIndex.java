@@ -0,0 +1,104 @@
+package android.app.printerapp.viewer;
+
+/**
+ * GL_LINES index lists for the polylines of a G-code, so a range of layers is drawn with a couple of
+ * glDrawElements calls instead of one glDrawArrays per polyline.
+ *
+ * Every polyline of n vertices becomes n-1 segments. Fill polylines go to their own list because they are
+ * only drawn for the last layers. Both lists keep the order of the polylines, which is also the order of the
+ * layers, so the segments of the polylines [from, to) are a single range of each list.
+ *
+ * The lists are built the first time they are asked for. They can be dropped once they are in GPU buffers and
+ * are built again from the polylines when needed, only the offsets are kept. Plain Java, it doesn't need a GL
+ * context.
+ */
+public class GcodeLineIndex {
+
+	private final int[] mLineLength;
+
+	//Null until asked for and after releaseIndices()
+	private int[] mSolidIndices;
+	private int[] mFillIndices;
+
+	//Position in the index list of the first segment of every polyline, the last element is the list size
+	private final int[] mSolidOffset;
+	private final int[] mFillOffset;
+
+	/**
+	 * @param lineLength number of vertices of every polyline, in order
+	 * @param typeArray type of every vertex, a polyline takes the type of its first vertex
+	 */
+	public GcodeLineIndex(int[] lineLength, byte[] typeArray) {
+		int lines = lineLength.length;
+
+		mLineLength = lineLength;
+		mSolidOffset = new int[lines + 1];
+		mFillOffset = new int[lines + 1];
+
+		//First pass, size of both lists
+		int start = 0;
+		for (int i = 0; i < lines; i++) {
+			int segments = lineLength[i] > 1 ? 2 * (lineLength[i] - 1) : 0;
+			boolean fill = segments > 0 && typeArray[start] == DataStorage.FILL;
+
+			mSolidOffset[i + 1] = mSolidOffset[i] + (fill ? 0 : segments);
+			mFillOffset[i + 1] = mFillOffset[i] + (fill ? segments : 0);
+
+			start += lineLength[i];
+		}
+	}
+
+	//Second pass, one pair of vertices per segment
+	private void buildIndices() {
+		int lines = mLineLength.length;
+		int[] lineLength = mLineLength;
+
+		mSolidIndices = new int[mSolidOffset[lines]];
+		mFillIndices = new int[mFillOffset[lines]];
+
+		int start = 0;
+		for (int i = 0; i < lines; i++) {
+			int[] indices = mSolidOffset[i + 1] > mSolidOffset[i] ? mSolidIndices : mFillIndices;
+			int pos = indices == mSolidIndices ? mSolidOffset[i] : mFillOffset[i];
+
+			for (int v = start; v < start + lineLength[i] - 1; v++) {
+				indices[pos++] = v;
+				indices[pos++] = v + 1;
+			}
+
+			start += lineLength[i];
+		}
+	}
+
+	public int[] getSolidIndices() {
+		if (mSolidIndices == null) buildIndices();
+		return mSolidIndices;
+	}
+
+	public int[] getFillIndices() {
+		if (mFillIndices == null) buildIndices();
+		return mFillIndices;
+	}
+
+	/**
+	 * Drop both lists, they are built again the next time they are asked for
+	 */
+	public void releaseIndices() {
+		mSolidIndices = null;
+		mFillIndices = null;
+	}
+
+	/**
+	 * Position in the solid list where the segments of this polyline start, or the list size for lineLength.length
+	 */
+	public int getSolidOffset(int line) {
+		return mSolidOffset[line];
+	}
+
+	/**
+	 * Position in the fill list where the segments of this polyline start, or the list size for lineLength.length
+	 */
+	public int getFillOffset(int line) {
+		return mFillOffset[line];
+	}
+}
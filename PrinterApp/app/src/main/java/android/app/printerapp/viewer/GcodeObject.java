@@ -1,11 +1,5 @@
 package android.app.printerapp.viewer;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
-import java.util.ArrayList;
-import java.util.List;
-
 import android.app.printerapp.Log;
 import android.content.Context;
 import android.opengl.GLES20;
@@ -14,24 +8,25 @@ public class GcodeObject {
 	
 	private static String TAG = "GCodeObject";
 
-	 private final String vertexShaderCode =
+	 private static final String vertexShaderCode =
 	            // This matrix member variable provides a hook to manipulate
 	            // the coordinates of the objects that use this vertex shader
 	            "uniform mat4 u_MVPMatrix;" +
+	            "uniform vec4 u_Palette[" + PALETTE_SIZE + "];" + // Color of every type
 	            
 	            "attribute vec4 a_Position;" +
-	            "attribute vec4 a_Color;"    +	            
+	            "attribute float a_Type;"    +	// Unsigned byte, out of range types use the last color
   				
 	            "varying vec4 v_Color;"		 +// This will be passed into the fragment shader.
 	            "void main() {" +
-	            "v_Color = a_Color ;" +
+	            "v_Color = u_Palette[int(min(a_Type, " + (PALETTE_SIZE - 1) + ".0))];" +
 	            // The matrix must be included as a modifier of gl_Position.
 	            // Note that the uMVPMatrix factor *must be first* in order
 	            // for the matrix multiplication product to be correct.
 	            "  gl_Position = u_MVPMatrix * a_Position;" +
 	            "}";
 
-	    private final String fragmentShaderCode =
+	    private static final String fragmentShaderCode =
 	            "precision mediump float;" +
 	            "varying vec4 v_Color;" +
 	            "void main() {" +
@@ -39,18 +34,22 @@ public class GcodeObject {
 	            "}";
           
 	
-	private final int mProgram;
+	private final ShaderProgramRegistry.Program mProgram;
 	private int mPositionHandle;
-	private int mColorHandle;
+	private int mTypeHandle;
+	private int mPaletteHandle;
 	private int mMVPMatrixHandle;
 	
 	static final int COORDS_PER_VERTEX = 3;
 	static final int COLORS_PER_VERTEX = 4;
 	
+	//Types go from 0 to DataStorage.SUPPORT, the last color is used for the rest
+	static final int PALETTE_SIZE = 16;
+	
 	private static final int LAYERS_TO_RENDER = 50;
 
 	private final int VERTEX_STRIDE = COORDS_PER_VERTEX * 4; // 4 bytes per vertex
-	private final int COLORS_STRIDE = COLORS_PER_VERTEX * 4; // 4 bytes per vertex
+	private final int TYPE_STRIDE = 1; // 1 byte per vertex
 
 	 
  
@@ -62,104 +61,65 @@ public class GcodeObject {
 	
 		
 	private final DataStorage mData;
+	private final BufferObjectManager mBuffers;
 	
 	private float [] mVertexArray;
-	private int [] mLayerArray;
-	private int [] mTypeArray;
-	private float [] mColorArray;
-	private List<Integer> mLineLength = new ArrayList<Integer>();
-	private final FloatBuffer mVertexBuffer;
-	private final FloatBuffer mColorBuffer;
+	private byte [] mTypeArray;
+	private final float [] mPalette = new float[PALETTE_SIZE * COLORS_PER_VERTEX];
+	private int [] mLineLength;
+	private int [] mLineStart;
+
+	//Null if the GPU can't use int indices, polylines are drawn one by one then
+	private GcodeLineIndex mLineIndex;
 
 	private int mLayer;
 		
 	private boolean mTransparent ;
 	private boolean mXray;
 
-	public GcodeObject(DataStorage data, Context context) {	
+	public GcodeObject(DataStorage data, Context context, BufferObjectManager buffers, ShaderProgramRegistry programs) {	
 		this.mData = data;
+		this.mBuffers = buffers;
 		this.mLayer = data.getActualLayer();
 		
 		Log.i(TAG, "Creating GCode Object");
 		
 		mVertexArray = mData.getVertexArray();
-		mLayerArray = mData.getLayerArray();
 		mTypeArray = mData.getTypeArray();
-		mLineLength = mData.getLineLengthList();
-		mColorArray = getColorArray();
+		mLineLength = mData.getLineLengthArray();
+		setDefaultPalette();
+
+		if (!mData.hasLayerIndex()) mData.buildLayerIndex();
+		mLineStart = mData.getLineStartArray();
 
 	
-		//Vertex buffer
-		ByteBuffer vbb = ByteBuffer.allocateDirect(mVertexArray.length * 4);
-		vbb.order(ByteOrder.nativeOrder());
-		mVertexBuffer = vbb.asFloatBuffer();
-		mVertexBuffer.put(mVertexArray);
-		mVertexBuffer.position(0);
-		
-		//Color buffer
-		ByteBuffer cbb = ByteBuffer.allocateDirect(mColorArray.length * 4);
-		cbb.order(ByteOrder.nativeOrder());
-		mColorBuffer = cbb.asFloatBuffer();
-		mColorBuffer.put(mColorArray);
-		mColorBuffer.position(0);
+		//Index lists, the whole layer range is drawn with one call for the fill and one for the rest
+		if (BufferObjectManager.supportsIntIndices()) {
+			mLineIndex = new GcodeLineIndex(mLineLength, mTypeArray);
+		} else {
+			Log.i(TAG, "No support for int indices, drawing polylines separately");
+		}
 		
 				
-		// prepare shaders and OpenGL program
-        int vertexShader = ViewerRenderer.loadShader(
-                GLES20.GL_VERTEX_SHADER,
-                vertexShaderCode);
-        int fragmentShader = ViewerRenderer.loadShader(
-                GLES20.GL_FRAGMENT_SHADER,
-                fragmentShaderCode);
-
-        mProgram = GLES20.glCreateProgram();             // create empty OpenGL Program
-        GLES20.glAttachShader(mProgram, vertexShader);   // add the vertex shader to program
-        GLES20.glAttachShader(mProgram, fragmentShader); // add the fragment shader to program
-        
-        GLES20.glBindAttribLocation(mProgram, 0, "a_Position");
-        GLES20.glBindAttribLocation(mProgram, 1, "a_Color");
-
-        GLES20.glLinkProgram(mProgram);                  // create OpenGL program executables        
+		// Shaders are compiled once per context
+		mProgram = programs.getProgram(vertexShaderCode, fragmentShaderCode, "a_Position", "a_Type");
 	}
 	
-	public float [] getColorArray () {
-		List <Float> list = new ArrayList<Float>();
-		float [] color=null;		
-
-		for (int i=0; i<mTypeArray.length; i++) {
-			switch (mTypeArray[i]) {
-			case DataStorage.WALL_INNER:
-				color = colorGreen;
-				break;
-			case DataStorage.WALL_OUTER:
-				color = colorRed;
-				break;
-			case DataStorage.FILL:
-				color =  colorYellow;
-				break;
-			case DataStorage.SKIRT:
-				color = colorGreen;
-				break;
-			case DataStorage.SUPPORT:
-				color = colorBlue;
-				break;
-			default:
-				color = colorYellow;
-				break;
-			}
-			
-			for (int j=0; j<color.length; j++) list.add(color[j]);
-						
-		}
-		
-		float [] finalColor = new float [list.size()];
-		
-		for (int i=0; i<list.size(); i++) {
-			finalColor[i] = list.get(i);
-		}
-		
-		return finalColor;
+	/**
+	 * Color of every type. The palette is a uniform, changing it doesn't touch the vertex buffers.
+	 */
+	public void setDefaultPalette () {
+		for (int i=0; i<PALETTE_SIZE; i++) setTypeColor(i, colorYellow);
 		
+		setTypeColor(DataStorage.WALL_INNER, colorGreen);
+		setTypeColor(DataStorage.WALL_OUTER, colorRed);
+		setTypeColor(DataStorage.FILL, colorYellow);
+		setTypeColor(DataStorage.SKIRT, colorGreen);
+		setTypeColor(DataStorage.SUPPORT, colorBlue);
+	}
+	
+	public void setTypeColor (int type, float[] color) {
+		System.arraycopy(color, 0, mPalette, type * COLORS_PER_VERTEX, COLORS_PER_VERTEX);
 	}
 	
 	public void setTransparent (boolean transparent) {
@@ -187,60 +147,89 @@ public class GcodeObject {
 		mLayer = mData.getActualLayer();
 
 		int layerMin = mLayer - LAYERS_TO_RENDER;
-		int vertexCount =0;
-		int vertexCountMin =0;
-						
-		for (int i=0; i<mLayerArray.length; i++)  
-		   	if (mLayerArray[i] <= mLayer)  
-		   		vertexCount++; //Total number of vertex from layer 0 to mLayer
-		
-		for (int i=0; i<mLayerArray.length; i++) 
-			if (mLayerArray[i]<=layerMin) 
-				vertexCountMin++; //Total number of vertex from layer 0 to layerMin
+
+		//Polylines from this one on start above the current layer
+		int lastLine = mData.getFirstLineOfLayer(mLayer + 1);
+		//Fill is only drawn for the last LAYERS_TO_RENDER layers
+		int firstFillLine = mData.getFirstLineOfLayer(layerMin + 1);
 		
-		int length = 0;
-	    GLES20.glUseProgram(mProgram);
+	    mProgram.use();
 	    
 	    GLES20.glBlendFunc(GLES20.GL_SRC_COLOR, GLES20.GL_CONSTANT_COLOR);  
 	    
 	    // get handle to vertex shader's vPosition member
-	    mPositionHandle = GLES20.glGetAttribLocation(mProgram, "a_Position");
-
-	    // Prepare the Vertex coordinate data
+	    mPositionHandle = mProgram.aPosition;
+
+	    // Prepare the Vertex coordinate data, uploaded to the GPU only the first time
+	    if (mBuffers.bindArray(mData, BufferObjectManager.VERTEX, mVertexArray) == 0) {
+	    	//No GPU memory for it, nothing to draw from
+	    	BufferObjectManager.unbind();
+	    	return;
+	    }
 	    GLES20.glVertexAttribPointer(mPositionHandle, COORDS_PER_VERTEX,
 	                                 GLES20.GL_FLOAT, false,
-	                                 VERTEX_STRIDE, mVertexBuffer); 
+	                                 VERTEX_STRIDE, 0); 
 	    
 	    // Enable a handle to the facet vertices
 	    GLES20.glEnableVertexAttribArray(mPositionHandle);
 	    
-        mColorHandle = GLES20.glGetAttribLocation(mProgram, "a_Color");
-        ViewerRenderer.checkGlError("glGetAttribLocation");
+        mTypeHandle = mProgram.aType;
 
-        GLES20.glVertexAttribPointer(mColorHandle, COLORS_PER_VERTEX, 
-        							GLES20.GL_FLOAT, false,
-        							COLORS_STRIDE, mColorBuffer);        
+        //The color comes from the type of every vertex
+        if (mBuffers.bindArray(mData, BufferObjectManager.COLOR, mTypeArray) == 0) {
+        	BufferObjectManager.unbind();
+        	return;
+        }
+        GLES20.glVertexAttribPointer(mTypeHandle, 1, 
+        							GLES20.GL_UNSIGNED_BYTE, false,
+        							TYPE_STRIDE, 0);        
+        
+        GLES20.glEnableVertexAttribArray(mTypeHandle);
         
-        GLES20.glEnableVertexAttribArray(mColorHandle);
+        mPaletteHandle = mProgram.uPalette;
+        GLES20.glUniform4fv(mPaletteHandle, PALETTE_SIZE, mPalette, 0);
 	    
    
 	    // get handle to shape's transformation matrix
-        mMVPMatrixHandle = GLES20.glGetUniformLocation(mProgram, "u_MVPMatrix");
-        ViewerRenderer.checkGlError("glGetUniformLocation");
+        mMVPMatrixHandle = mProgram.uMVPMatrix;
 
         // Apply the projection and view transformation
         GLES20.glUniformMatrix4fv(mMVPMatrixHandle, 1, false, mvpMatrix, 0);
         ViewerRenderer.checkGlError("glUniformMatrix4fv");
                
         
-        for (int i=0; i<mLineLength.size(); i++) {    	
-    		if (mLineLength.get(i)>1) { 
-    			if (mTypeArray[length]!=DataStorage.FILL || length>vertexCountMin) 			        		
-    				GLES20.glDrawArrays(GLES20.GL_LINE_STRIP, length, mLineLength.get(i));
-    				if (length>=vertexCount) break; 
-    		}    		
-			length+=mLineLength.get(i);		
+        if (mLineIndex != null) {
+        	boolean solid = bindLineIndex(BufferObjectManager.INDEX);
+        	if (solid) drawSegments(0, mLineIndex.getSolidOffset(lastLine));
+        	
+        	int fillFrom = mLineIndex.getFillOffset(firstFillLine);
+        	boolean fill = bindLineIndex(BufferObjectManager.INDEX_FILL);
+        	if (fill) drawSegments(fillFrom, mLineIndex.getFillOffset(lastLine) - fillFrom);
+
+        	//Both lists are on the GPU, they are built again if the context is lost
+        	if (solid && fill) mLineIndex.releaseIndices();
+        } else {
+	        for (int i=0; i<lastLine; i++) {
+	    		if (mLineLength[i]>1 && (i>=firstFillLine || mTypeArray[mLineStart[i]]!=DataStorage.FILL))
+	    			GLES20.glDrawArrays(GLES20.GL_LINE_STRIP, mLineStart[i], mLineLength[i]);
+	        }
         }
-                      
+        
+        BufferObjectManager.unbind();
 	}	
+
+	//Bind the index buffer of the slot, the list is only built and uploaded if it's not there yet
+	private boolean bindLineIndex (int slot) {
+		if (mBuffers.bindUploaded(mData, slot, GLES20.GL_ELEMENT_ARRAY_BUFFER)) return true;
+
+		int[] indices = (slot == BufferObjectManager.INDEX) ? mLineIndex.getSolidIndices() : mLineIndex.getFillIndices();
+		return mBuffers.bindElements(mData, slot, indices) != 0;
+	}
+
+	//Draw count indices of the bound element buffer starting at from
+	private void drawSegments (int from, int count) {
+		if (count <= 0) return;
+		
+		GLES20.glDrawElements(GLES20.GL_LINES, count, GLES20.GL_UNSIGNED_INT, from * 4);
+	}
 }
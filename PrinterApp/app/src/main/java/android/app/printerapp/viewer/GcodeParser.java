@@ -0,0 +1,548 @@
+package android.app.printerapp.viewer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Single-pass G-code parser.
+ *
+ * The file is read once through a fixed-size byte buffer and every line is tokenized in place,
+ * so no String is created per line. Only G0/G1 moves and the ;TYPE: / ;LAYER: comments
+ * written by the slicer are interpreted, everything else is skipped.
+ * Parsed vertices are fed directly into the DataStorage given in the constructor.
+ *
+ * A parser can also work on a byte range of the file starting from a given State, which is
+ * what ParallelGcodeParser uses to split big files. Without a DataStorage it only tracks the state
+ * and counts what it would store, and with arrays sized beforehand it writes its own range of them.
+ */
+public class GcodeParser {
+
+	public interface ProgressListener {
+		void onProgress(long bytesRead, long totalBytes);
+	}
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	//Progress is only reported every PROGRESS_STEPS-th of the file
+	private static final int PROGRESS_STEPS = 100;
+
+	private static final byte[] END_GCODE = "END GCODE".getBytes();
+	private static final byte[] LAYER_COUNT = "layer count".getBytes();
+	private static final byte[] LAYER = "LAYER:".getBytes();
+
+	//Same order as the old line.contains() chain, the first match wins
+	private static final byte[][] TYPE_NAMES = {
+			"MOVE".getBytes(), "FILL".getBytes(), "PERIMETER".getBytes(), "RETRACT".getBytes(),
+			"COMPENSATE".getBytes(), "BRIDGE".getBytes(), "SKIRT".getBytes(),
+			"WALL-INNER".getBytes(), "WALL-OUTER".getBytes(), "SUPPORT".getBytes()
+	};
+	private static final int[] TYPE_VALUES = {
+			DataStorage.MOVE, DataStorage.FILL, DataStorage.PERIMETER, DataStorage.RETRACT,
+			DataStorage.COMPENSATE, DataStorage.BRIDGE, DataStorage.SKIRT,
+			DataStorage.WALL_INNER, DataStorage.WALL_OUTER, DataStorage.SUPPORT
+	};
+
+	private static final double[] POW10 = {
+			1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9,
+			1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18
+	};
+
+	private final DataStorage mData;
+	private final float mOffsetX;
+	private final float mOffsetY;
+
+	//Final arrays of a parallel load and where this parser starts writing them, null if not used
+	private float[] mVertexArray;
+	private int[] mLayerArray;
+	private byte[] mTypeArray;
+	private int[] mLineLengthArray;
+	private int mFirstVertex;
+	private int mFirstLine;
+
+	//Bounds of the vertices written to the arrays, they are merged into the model at the end
+	private float mMinX = Float.MAX_VALUE;
+	private float mMinY = Float.MAX_VALUE;
+	private float mMinZ = Float.MAX_VALUE;
+	private float mMaxX = -Float.MAX_VALUE;
+	private float mMaxY = -Float.MAX_VALUE;
+	private float mMaxZ = -Float.MAX_VALUE;
+
+	private byte[] mBuffer = new byte[BUFFER_SIZE];
+	private volatile boolean mCancelled = false;
+
+	//Parser state carried from one line to the next
+	private float mX = 0;
+	private float mY = 0;
+	private float mZ = 0;
+	private int mType = -1;
+	private int mLayer = 0;
+	private int mLength = 0;
+	private boolean mStart = false;
+	private boolean mEnd = false;
+
+	//Which state values were found by this parser, used to summarize a chunk
+	private boolean mSeenX = false;
+	private boolean mSeenY = false;
+	private boolean mSeenZ = false;
+	private boolean mSeenType = false;
+	private boolean mSeenLayer = false;
+	private boolean mSeenMove = false;
+
+	//Type to set on the last vertex of the previous chunk, see processLine
+	private boolean mHasPendingType = false;
+	private int mPendingType;
+
+	private int mMaxLayer = -1;
+	private int mLines = 0;
+
+	//Vertices and line lengths stored, or that would be stored without a destination
+	private int mVertexCount = 0;
+	private int mLineLengthCount = 0;
+
+	/**
+	 * Values carried from one line to the next.
+	 * When a chunk is summarized on its own the seen flags tell which values were actually found in it.
+	 */
+	static class State {
+		float x, y, z;
+		int type = -1;
+		int layer = 0;
+		int length = 0;
+		boolean start, end;
+		boolean seenX, seenY, seenZ, seenType, seenLayer, seenMove;
+
+		/**
+		 * State after parsing a chunk summarized by next, starting from this state.
+		 */
+		State then(State next) {
+			State s = new State();
+			s.x = next.seenX ? next.x : x;
+			s.y = next.seenY ? next.y : y;
+			s.z = next.seenZ ? next.z : z;
+			s.type = next.seenType ? next.type : type;
+			s.layer = next.seenLayer ? next.layer : layer;
+			//Without a G0 the chunk only added G1 moves to the current line
+			s.length = next.seenMove ? next.length : length + next.length;
+			s.start = start || next.start;
+			s.end = end || next.end;
+			return s;
+		}
+	}
+
+	/**
+	 * @param data storage that will receive the vertices, null to only track the state
+	 * @param offsetX value subtracted from every X coordinate (half the plate length)
+	 * @param offsetY value subtracted from every Y coordinate (half the plate width)
+	 */
+	public GcodeParser(DataStorage data, float offsetX, float offsetY) {
+		mData = data;
+		mOffsetX = offsetX;
+		mOffsetY = offsetY;
+	}
+
+	/**
+	 * Parser writing into arrays sized beforehand, starting at the given vertex and line length.
+	 * Several parsers can write their own ranges of the same arrays at the same time.
+	 */
+	GcodeParser(float[] vertexArray, int[] layerArray, byte[] typeArray, int[] lineLengthArray,
+			int firstVertex, int firstLine, float offsetX, float offsetY) {
+		this(null, offsetX, offsetY);
+		mVertexArray = vertexArray;
+		mLayerArray = layerArray;
+		mTypeArray = typeArray;
+		mLineLengthArray = lineLengthArray;
+		mFirstVertex = firstVertex;
+		mFirstLine = firstLine;
+	}
+
+	public void cancel() {
+		mCancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return mCancelled;
+	}
+
+	public int getMaxLayer() {
+		return mMaxLayer;
+	}
+
+	public int getLineCount() {
+		return mLines;
+	}
+
+	public int getVertexCount() {
+		return mVertexCount;
+	}
+
+	public int getLineLengthCount() {
+		return mLineLengthCount;
+	}
+
+	/**
+	 * Add the bounds of the vertices written to the arrays to the ones of the model
+	 */
+	void mergeBounds(DataStorage data) {
+		if (mMinX > mMaxX) return;
+
+		data.adjustMaxMin(mMinX, mMinY, mMinZ);
+		data.adjustMaxMin(mMaxX, mMaxY, mMaxZ);
+	}
+
+	void setState(State state) {
+		mX = state.x;
+		mY = state.y;
+		mZ = state.z;
+		mType = state.type;
+		mLayer = state.layer;
+		mLength = state.length;
+		mStart = state.start;
+		mEnd = state.end;
+	}
+
+	State getState() {
+		State state = new State();
+		state.x = mX;
+		state.y = mY;
+		state.z = mZ;
+		state.type = mType;
+		state.layer = mLayer;
+		state.length = mLength;
+		state.start = mStart;
+		state.end = mEnd;
+		state.seenX = mSeenX;
+		state.seenY = mSeenY;
+		state.seenZ = mSeenZ;
+		state.seenType = mSeenType;
+		state.seenLayer = mSeenLayer;
+		state.seenMove = mSeenMove;
+		return state;
+	}
+
+	public boolean hasPendingType() {
+		return mHasPendingType;
+	}
+
+	public int getPendingType() {
+		return mPendingType;
+	}
+
+	public void parse(File file, ProgressListener listener) throws IOException {
+		parse(file, 0, file.length(), listener);
+	}
+
+	/**
+	 * Parse the bytes of the file in [from, to). Both ends must be at the start of a line.
+	 */
+	public void parse(File file, long from, long to, ProgressListener listener) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			in.getChannel().position(from);
+			parse(in, to - from, listener);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Parse totalBytes of the stream. The buffer is refilled as lines are consumed, and any partial
+	 * line left at the end of the buffer is moved to the front before the next read.
+	 */
+	public void parse(InputStream in, long totalBytes, ProgressListener listener) throws IOException {
+		long consumed = 0;
+		long nextProgress = 0;
+		long progressStep = Math.max(1, totalBytes / PROGRESS_STEPS);
+		long remaining = totalBytes;
+		int filled = 0;
+		int read;
+
+		while (!mCancelled) {
+			if (filled == mBuffer.length) {
+				//A single line longer than the buffer, grow it
+				byte[] bigger = new byte[mBuffer.length * 2];
+				System.arraycopy(mBuffer, 0, bigger, 0, filled);
+				mBuffer = bigger;
+			}
+
+			if (remaining <= 0) break;
+			read = in.read(mBuffer, filled, (int) Math.min(mBuffer.length - filled, remaining));
+			if (read < 0) break;
+			filled += read;
+			remaining -= read;
+
+			byte[] b = mBuffer;
+			int lineStart = 0;
+			for (int i = 0; i < filled; i++) {
+				if (b[i] == '\n') {
+					processLine(b, lineStart, i);
+					lineStart = i + 1;
+				}
+			}
+
+			consumed += lineStart;
+			filled -= lineStart;
+			if (filled > 0) System.arraycopy(b, lineStart, b, 0, filled);
+
+			if (listener != null && consumed >= nextProgress) {
+				listener.onProgress(consumed, totalBytes);
+				nextProgress = consumed + progressStep;
+			}
+		}
+
+		//Last line without a trailing new line
+		if (!mCancelled && filled > 0) {
+			processLine(mBuffer, 0, filled);
+			consumed += filled;
+		}
+
+		if (listener != null) listener.onProgress(consumed, totalBytes);
+	}
+
+	/**
+	 * Process the line contained in b[from, to), without the new line character.
+	 */
+	private void processLine(byte[] b, int from, int to) {
+		mLines++;
+
+		if (to > from && b[to - 1] == '\r') to--;
+		while (from < to && (b[from] == ' ' || b[from] == '\t')) from++;
+
+		int comment = indexOf(b, from, to, (byte) ';');
+
+		if (comment >= 0) {
+			processComment(b, comment + 1, to);
+			to = comment;
+		}
+
+		if (to - from < 2 || b[from] != 'G') return;
+
+		//Command number, it has to be exactly 0 or 1 (G10/G11 are firmware retracts)
+		int i = from + 1;
+		int command = 0;
+		while (i < to && isDigit(b[i])) {
+			command = command * 10 + (b[i] - '0');
+			if (command > 1) return;
+			i++;
+		}
+		if (i == from + 1) return;
+
+		while (i < to) {
+			while (i < to && (b[i] == ' ' || b[i] == '\t')) i++;
+			int wordStart = i;
+			while (i < to && b[i] != ' ' && b[i] != '\t') i++;
+
+			if (i - wordStart <= 1) continue;
+
+			switch (b[wordStart]) {
+				case 'X':
+					mX = parseFloat(b, wordStart + 1, i) - mOffsetX;
+					mSeenX = true;
+					break;
+				case 'Y':
+					mY = parseFloat(b, wordStart + 1, i) - mOffsetY;
+					mSeenY = true;
+					break;
+				case 'Z':
+					mZ = parseFloat(b, wordStart + 1, i);
+					mSeenZ = true;
+					break;
+			}
+		}
+
+		if (mLayer > mMaxLayer) mMaxLayer = mLayer;
+
+		if (command == 0) {
+			mSeenMove = true;
+			addLineLength(mLength);
+			mLength = 1;
+		} else {
+			//GCode saves the movement from one type to another (i.e wall_inner-wall_outer) in the list of the previous type.
+			//If we have just started a line, we set again the colour of the first vertex to avoid wrong colour
+			//This avoids gradients in rendering.
+			//When parsing a chunk that vertex may belong to the previous one, keep it for later.
+			if (mLength == 1) {
+				if (mVertexCount > 0) setLastType(mType);
+				else {
+					mHasPendingType = true;
+					mPendingType = mType;
+				}
+			}
+
+			mLength++;
+
+			if (mStart && !mEnd) adjustMaxMin();
+		}
+
+		addVertex();
+	}
+
+	private void addLineLength(int length) {
+		if (mData != null) mData.addLineLength(length);
+		else if (mLineLengthArray != null) mLineLengthArray[mFirstLine + mLineLengthCount] = length;
+
+		mLineLengthCount++;
+	}
+
+	private void addVertex() {
+		if (mData != null) {
+			mData.addVertex(mX);
+			mData.addVertex(mY);
+			mData.addVertex(mZ);
+			mData.addLayer(mLayer);
+			mData.addType(mType);
+		} else if (mVertexArray != null) {
+			int vertex = mFirstVertex + mVertexCount;
+			mVertexArray[vertex * 3] = mX;
+			mVertexArray[vertex * 3 + 1] = mY;
+			mVertexArray[vertex * 3 + 2] = mZ;
+			mLayerArray[vertex] = mLayer;
+			mTypeArray[vertex] = (byte) mType;
+		}
+
+		mVertexCount++;
+	}
+
+	private void setLastType(int type) {
+		if (mData != null) mData.changeTypeAtIndex(mData.getTypeListSize() - 1, type);
+		else if (mTypeArray != null) mTypeArray[mFirstVertex + mVertexCount - 1] = (byte) type;
+	}
+
+	private void adjustMaxMin() {
+		if (mData != null) {
+			mData.adjustMaxMin(mX, mY, mZ);
+			return;
+		}
+
+		if (mX < mMinX) mMinX = mX;
+		if (mX > mMaxX) mMaxX = mX;
+		if (mY < mMinY) mMinY = mY;
+		if (mY > mMaxY) mMaxY = mY;
+		if (mZ < mMinZ) mMinZ = mZ;
+		if (mZ > mMaxZ) mMaxZ = mZ;
+	}
+
+	private void processComment(byte[] b, int from, int to) {
+		if (indexOf(b, from, to, END_GCODE, false) >= 0) mEnd = true;
+		if (indexOf(b, from, to, LAYER_COUNT, true) >= 0) mStart = true;
+
+		for (int t = 0; t < TYPE_NAMES.length; t++) {
+			if (indexOf(b, from, to, TYPE_NAMES[t], false) >= 0) {
+				mType = TYPE_VALUES[t];
+				mSeenType = true;
+				break;
+			}
+		}
+
+		int layer = indexOf(b, from, to, LAYER, false);
+		if (layer >= 0) {
+			int i = layer + LAYER.length;
+			while (i < to && b[i] == ' ') i++;
+
+			boolean negative = i < to && b[i] == '-';
+			if (negative) i++;
+
+			if (i < to && isDigit(b[i])) {
+				int value = 0;
+				while (i < to && isDigit(b[i])) {
+					value = value * 10 + (b[i] - '0');
+					i++;
+				}
+				mLayer = negative ? -value : value;
+				mSeenLayer = true;
+			}
+		}
+	}
+
+	private static boolean isDigit(byte c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static int indexOf(byte[] b, int from, int to, byte c) {
+		for (int i = from; i < to; i++) {
+			if (b[i] == c) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Search the ASCII needle inside b[from, to). Needles passed with ignoreCase must be lower case.
+	 */
+	private static int indexOf(byte[] b, int from, int to, byte[] needle, boolean ignoreCase) {
+		int last = to - needle.length;
+		for (int i = from; i <= last; i++) {
+			int j = 0;
+			while (j < needle.length) {
+				byte c = b[i + j];
+				if (ignoreCase && c >= 'A' && c <= 'Z') c = (byte) (c + ('a' - 'A'));
+				if (c != needle[j]) break;
+				j++;
+			}
+			if (j == needle.length) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Parse a decimal number (optional sign, fraction and exponent) from b[from, to).
+	 * Characters after the number are ignored, like trailing checksums.
+	 */
+	static float parseFloat(byte[] b, int from, int to) {
+		int i = from;
+		boolean negative = false;
+
+		if (i < to && (b[i] == '-' || b[i] == '+')) {
+			negative = b[i] == '-';
+			i++;
+		}
+
+		long mantissa = 0;
+		int digits = 0;
+		int exponent = 0;
+
+		while (i < to && isDigit(b[i])) {
+			if (digits < 18) {
+				mantissa = mantissa * 10 + (b[i] - '0');
+				if (mantissa != 0) digits++;
+			} else exponent++;
+			i++;
+		}
+
+		if (i < to && b[i] == '.') {
+			i++;
+			while (i < to && isDigit(b[i])) {
+				if (digits < 18) {
+					mantissa = mantissa * 10 + (b[i] - '0');
+					if (mantissa != 0) digits++;
+					exponent--;
+				}
+				i++;
+			}
+		}
+
+		if (i < to && (b[i] == 'e' || b[i] == 'E')) {
+			i++;
+			boolean negativeExp = false;
+			if (i < to && (b[i] == '-' || b[i] == '+')) {
+				negativeExp = b[i] == '-';
+				i++;
+			}
+			int exp = 0;
+			while (i < to && isDigit(b[i])) {
+				if (exp < 1000) exp = exp * 10 + (b[i] - '0');
+				i++;
+			}
+			exponent += negativeExp ? -exp : exp;
+		}
+
+		double value = mantissa;
+		if (exponent < 0) {
+			value = -exponent < POW10.length ? value / POW10[-exponent] : value * Math.pow(10, exponent);
+		} else if (exponent > 0) {
+			value = exponent < POW10.length ? value * POW10[exponent] : value * Math.pow(10, exponent);
+		}
+
+		return (float) (negative ? -value : value);
+	}
+}
@@ -6,7 +6,6 @@ import android.opengl.Matrix;
 import java.util.List;
 
 public class Geometry {
-	 private static final float OFFSET = 20f;
 
 	 public static class Point {
 		 public final float x, y, z;
@@ -145,6 +144,31 @@ public class Geometry {
 	 	 return new Point (x,y,z);
 	 }
 	 
+	 /**
+	  * Distance along the ray to the surface of the model, in units of the ray vector, or -1 if the ray misses it.
+	  * Uses the triangle hierarchy of the model, Float.MAX_VALUE if it's not built yet and the ray hits its box.
+	  */
+	 public static float intersectionDistanceSurface(Ray ray, DataStorage data) {
+		 Box box = new Box (data.getMinX(), data.getMaxX(), data.getMinY(), data.getMaxY(), data.getMinZ(), data.getMaxZ());
+		 if (!intersects(box, ray)) return -1;
+
+		 TriangleBvh bvh = data.getBvh();
+		 if (bvh == null) return Float.MAX_VALUE;
+
+		 //The ray in model coordinates, distances along it don't change
+		 float [] inverse = new float [16];
+		 if (!Matrix.invertM(inverse, 0, data.getModelMatrix(), 0)) return -1;
+
+		 float [] point = {ray.point.x, ray.point.y, ray.point.z, 1};
+		 float [] vector = {ray.vector.x, ray.vector.y, ray.vector.z, 0};
+		 float [] modelPoint = new float [4];
+		 float [] modelVector = new float [4];
+		 Matrix.multiplyMV(modelPoint, 0, inverse, 0, point, 0);
+		 Matrix.multiplyMV(modelVector, 0, inverse, 0, vector, 0);
+
+		 return bvh.intersect(modelPoint[0], modelPoint[1], modelPoint[2], modelVector[0], modelVector[1], modelVector[2]);
+	 }
+
 	 public static boolean overlaps (float maxX, float minX, float maxY,  float minY, DataStorage d) {
 		 float maxX2 = d.getMaxX();
 		 float maxY2 = d.getMaxY();
@@ -172,6 +196,10 @@ public class Geometry {
 
 	 }
 	 
+	 /**
+	  * Move the last model into the free space of the plate if it overlaps another one.
+	  * Returns false if it doesn't fit there, the other models are never moved
+	  */
 	 public static boolean relocateIfOverlaps (List<DataStorage> objects) {
 		 int objectToFit = objects.size()-1;
 
@@ -185,7 +213,7 @@ public class Geometry {
          } catch (ArrayIndexOutOfBoundsException e){
 
              e.printStackTrace();
-             return false;
+             return true;
          }
 
 		 boolean overlaps = false;
@@ -197,109 +225,33 @@ public class Geometry {
 			 }
 		 }
 
-		 if (!overlaps) return false;
-		 
-		float width = data.getMaxX() - data.getMinX();
-		float deep = data.getMaxY() - data.getMinY();
-		
-		float setMinX=Float.MAX_VALUE;
-		int index =-1;
-		
-		float newMaxX;
-		float newMinX;
-		float newMaxY;
-		float newMinY;
-		
-		for (int i=0; i<objects.size(); i++) {
-			if (i!= objectToFit) {
-				DataStorage d = objects.get(i); 
-				if (d.getMinX()<setMinX) {
-					setMinX = d.getMinX();
-					index = i;
-				}
-				//UP
-				newMaxX = d.getMaxX();
-				newMinX = d.getMinX();
-				newMaxY = d.getLastCenter().y + Math.abs(d.getMaxY() - d.getLastCenter().y) + deep + OFFSET;
-				newMinY = d.getLastCenter().y + Math.abs(d.getMaxY() - d.getLastCenter().y) +OFFSET; 
-							
-				if (isValidPosition(newMaxX, newMinX, newMaxY, newMinY, objects, objectToFit)) {
-					changeModelToFit(newMaxX, newMinX, newMaxY, newMinY, data);
-					break;
-				}
-				
-				//RIGHT
-				newMaxX = d.getLastCenter().x + Math.abs(d.getMaxX() - d.getLastCenter().x) + width + OFFSET;
-				newMinX = d.getLastCenter().x + Math.abs(d.getMaxX() - d.getLastCenter().x) + OFFSET;
-				newMaxY = d.getMaxY();
-				newMinY = d.getMinY();	
-						
-				if (isValidPosition(newMaxX, newMinX, newMaxY, newMinY, objects, objectToFit)) {
-					changeModelToFit(newMaxX, newMinX, newMaxY, newMinY, data);
-					break;
-				}
-				
-				//DOWN
-				newMaxX = d.getMaxX();
-				newMinX = d.getMinX();
-				newMaxY = d.getLastCenter().y - (Math.abs(d.getMinY() - d.getLastCenter().y) + OFFSET);
-				newMinY = d.getLastCenter().y - (Math.abs(d.getMinY() - d.getLastCenter().y) + deep + OFFSET); 	
-						
-				if (isValidPosition(newMaxX, newMinX, newMaxY, newMinY, objects,  objectToFit)) {
-					changeModelToFit(newMaxX, newMinX, newMaxY, newMinY, data);
-					break;
-				} 
-				
-				//LEFT
-				newMaxX = d.getLastCenter().x - (Math.abs(d.getMinX() - d.getLastCenter().x)+ OFFSET);
-				newMinX = d.getLastCenter().x - (Math.abs(d.getMinX() - d.getLastCenter().x) + width + OFFSET);
-				newMaxY = d.getMaxY();
-				newMinY = d.getMinY();		
-						
-				if (isValidPosition(newMaxX, newMinX, newMaxY, newMinY, objects, objectToFit)) {
-					changeModelToFit(newMaxX, newMinX, newMaxY, newMinY, data);
-					break;
-				} else if (i==objects.size()-2) {
-
-                    return false;
-
-					/*newMaxX = setMinX - OFFSET;
-					newMinX = setMinX - (width + OFFSET);
-					newMaxY = objects.get(index).getMaxY()+OFFSET;
-					newMinY = objects.get(index).getMinY()+OFFSET;	
-					
-					data.setStateObject(ViewerRenderer.OUT_NOT_TOUCHED);
-
-
-					changeModelToFit(newMaxX, newMinX, newMaxY, newMinY, data);*/
-				}					
-			}
-		}
-		
-		return true;
+		 if (!overlaps) return true;
+
+		 //Only into the free space, the rest of the plate stays as the user left it
+		 return PlateArranger.place(objects, objectToFit, ViewerMainFragment.getCurrentPlate(), true) == 1;
 	 }
 		
 	 public static boolean isValidPosition (float newMaxX, float newMinX, float newMaxY, float newMinY, List<DataStorage> objects, int object) {
-		 boolean overlaps = false; 
-		 boolean outOfPlate = false;
-		 int k = 0;
-
-         int[] auxPlate = ViewerMainFragment.getCurrentPlate();
-
-		 if (newMaxX > auxPlate[0] || newMinX < -auxPlate[0]
-				|| newMaxY > auxPlate[1] || newMinY < -auxPlate[1]) outOfPlate = true;
-			
-		 while (!outOfPlate && !overlaps && k <objects.size()) {	
-			 if (k!=object) {
-				 if (Geometry.overlaps(newMaxX, newMinX, newMaxY, newMinY, objects.get(k)))  overlaps = true;
-			 }		
-			 k++;
+		 if (isOutOfPlate(newMaxX, newMinX, newMaxY, newMinY)) return false;
+
+		 for (int k=0; k<objects.size(); k++) {
+			 if (k!=object && Geometry.overlaps(newMaxX, newMinX, newMaxY, newMinY, objects.get(k))) return false;
 		 }
 
-		 if (!outOfPlate && !overlaps) 					
-			 return true;
-		
-		 else return false;
+		 return true;
+	 }
+
+	 /**
+	  * Same check against the footprints in the grid, only the models near the position are compared
+	  */
+	 public static boolean isValidPosition (float newMaxX, float newMinX, float newMaxY, float newMinY, FootprintGrid grid, DataStorage object) {
+		 return !isOutOfPlate(newMaxX, newMinX, newMaxY, newMinY) && !grid.overlaps(newMaxX, newMinX, newMaxY, newMinY, object);
+	 }
+
+	 private static boolean isOutOfPlate (float newMaxX, float newMinX, float newMaxY, float newMinY) {
+		 int[] auxPlate = ViewerMainFragment.getCurrentPlate();
+
+		 return newMaxX > auxPlate[0] || newMinX < -auxPlate[0] || newMaxY > auxPlate[1] || newMinY < -auxPlate[1];
 	 }
 	
 	public static void changeModelToFit (float newMaxX, float newMinX, float newMaxY, float newMinY, DataStorage d) {		
@@ -315,7 +267,14 @@ public class Geometry {
 		Point newCenter = new Point (newCenterX, newCenterY, newCenterZ );
 
 		d.setLastCenter(newCenter);
-		
+
+		refreshModelMatrix(d);
+	}
+
+	/**
+	 * Rebuild the model matrix from the center, scale and rotation of the model
+	 */
+	public static void refreshModelMatrix (DataStorage d) {
 		float [] temporaryModel = new float[16];
 		Matrix.setIdentityM(temporaryModel, 0);
         Matrix.translateM(temporaryModel, 0, d.getLastCenter().x, d.getLastCenter().y, d.getLastCenter().z);  
@@ -0,0 +1,222 @@
+package android.app.printerapp.viewer;
+
+import java.util.Arrays;
+
+/**
+ * Indexed version of a triangle soup, as read from an STL file.
+ *
+ * Corners at the same position are welded into a single vertex using an open addressing hash on their
+ * quantized coordinates, and every triangle becomes three indices. Corners of faces meeting at a sharper
+ * angle than CREASE_ANGLE keep separate vertices, so hard edges stay flat shaded while curved surfaces share
+ * their vertices. The normal of a vertex is the area weighted sum of the normals of its faces.
+ *
+ * Plain Java, it doesn't need a GL context.
+ */
+public class IndexedMesh {
+
+	//Corners closer than this fraction of the model size are the same vertex
+	private static final float WELD_TOLERANCE = 1e-6f;
+
+	//Faces meeting at a sharper angle don't share vertices
+	private static final float CREASE_ANGLE = 30f;
+
+	private static final int COORDS_PER_VERTEX = 3;
+
+	private final float[] mVertexArray;
+	private final float[] mNormalArray;
+	private final int[] mIndexArray;
+
+	//Welding state, released when finished
+	private ChunkedFloatArray mVertices = new ChunkedFloatArray();
+	private ChunkedFloatArray mNormalSums = new ChunkedFloatArray();
+	private ChunkedFloatArray mSeedNormals = new ChunkedFloatArray();
+	private ChunkedIntArray mKeys = new ChunkedIntArray();
+	private int[] mTable;
+	private int mCount = 0;
+
+	private final float mScale;
+	private final float mCosCrease = (float) Math.cos(Math.toRadians(CREASE_ANGLE));
+
+	/**
+	 * @param triangles 9 coordinates per triangle
+	 */
+	public IndexedMesh(float[] triangles) {
+		int corners = triangles.length / COORDS_PER_VERTEX;
+
+		float maxAbs = 0;
+		for (float f : triangles) {
+			if (Math.abs(f) > maxAbs) maxAbs = Math.abs(f);
+		}
+		mScale = maxAbs > 0 ? 1f / (maxAbs * WELD_TOLERANCE) : 1f;
+
+		mTable = newTable(Math.max(16, corners / 2));
+		mIndexArray = new int[corners];
+
+		for (int t = 0; t + 8 < triangles.length; t += 9) {
+			//Face normal, its length is twice the area of the triangle
+			float ax = triangles[t + 3] - triangles[t];
+			float ay = triangles[t + 4] - triangles[t + 1];
+			float az = triangles[t + 5] - triangles[t + 2];
+			float bx = triangles[t + 6] - triangles[t];
+			float by = triangles[t + 7] - triangles[t + 1];
+			float bz = triangles[t + 8] - triangles[t + 2];
+
+			float nx = (ay * bz) - (az * by);
+			float ny = (az * bx) - (ax * bz);
+			float nz = (ax * by) - (ay * bx);
+			float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+
+			float ux = length > 0 ? nx / length : 0;
+			float uy = length > 0 ? ny / length : 0;
+			float uz = length > 0 ? nz / length : 0;
+
+			for (int v = t; v < t + 9; v += 3) {
+				int index = weld(triangles[v], triangles[v + 1], triangles[v + 2], ux, uy, uz);
+				mIndexArray[v / COORDS_PER_VERTEX] = index;
+
+				int n = index * COORDS_PER_VERTEX;
+				mNormalSums.set(n, mNormalSums.get(n) + nx);
+				mNormalSums.set(n + 1, mNormalSums.get(n + 1) + ny);
+				mNormalSums.set(n + 2, mNormalSums.get(n + 2) + nz);
+			}
+		}
+
+		mVertexArray = mVertices.freeze();
+		mNormalArray = mNormalSums.freeze();
+
+		for (int i = 0; i < mNormalArray.length; i += 3) {
+			float x = mNormalArray[i];
+			float y = mNormalArray[i + 1];
+			float z = mNormalArray[i + 2];
+			float length = (float) Math.sqrt(x * x + y * y + z * z);
+
+			if (length > 0) {
+				mNormalArray[i] = x / length;
+				mNormalArray[i + 1] = y / length;
+				mNormalArray[i + 2] = z / length;
+			} else {
+				//Only degenerate faces around it
+				mNormalArray[i + 2] = 1;
+			}
+		}
+
+		mVertices = null;
+		mNormalSums = null;
+		mSeedNormals = null;
+		mKeys = null;
+		mTable = null;
+	}
+
+	public float[] getVertexArray() {
+		return mVertexArray;
+	}
+
+	public float[] getNormalArray() {
+		return mNormalArray;
+	}
+
+	public int[] getIndexArray() {
+		return mIndexArray;
+	}
+
+	/**
+	 * Back to one vertex per triangle corner, for a GPU that can't draw this many indexed vertices
+	 */
+	public static float[] expand(float[] values, int[] indices) {
+		float[] expanded = new float[indices.length * COORDS_PER_VERTEX];
+
+		for (int i = 0; i < indices.length; i++) {
+			System.arraycopy(values, indices[i] * COORDS_PER_VERTEX, expanded, i * COORDS_PER_VERTEX, COORDS_PER_VERTEX);
+		}
+		return expanded;
+	}
+
+	/**
+	 * Index of the vertex for this corner, added if there is none at the same position facing a similar direction
+	 */
+	private int weld(float x, float y, float z, float nx, float ny, float nz) {
+		int kx = Math.round(x * mScale);
+		int ky = Math.round(y * mScale);
+		int kz = Math.round(z * mScale);
+
+		int mask = mTable.length - 1;
+		int slot = hash(kx, ky, kz) & mask;
+
+		while (mTable[slot] >= 0) {
+			int index = mTable[slot];
+			int k = index * COORDS_PER_VERTEX;
+
+			if (mKeys.get(k) == kx && mKeys.get(k + 1) == ky && mKeys.get(k + 2) == kz
+					&& isSmooth(k, nx, ny, nz)) return index;
+
+			slot = (slot + 1) & mask;
+		}
+
+		int index = mCount++;
+		mTable[slot] = index;
+
+		mVertices.add(x);
+		mVertices.add(y);
+		mVertices.add(z);
+		mKeys.add(kx);
+		mKeys.add(ky);
+		mKeys.add(kz);
+		mSeedNormals.add(nx);
+		mSeedNormals.add(ny);
+		mSeedNormals.add(nz);
+		mNormalSums.add(0);
+		mNormalSums.add(0);
+		mNormalSums.add(0);
+
+		//Keep the table at most half full
+		if (mCount * 2 > mTable.length) rehash();
+
+		return index;
+	}
+
+	/**
+	 * Whether a face can share the vertex, compared to the first face that used it.
+	 * Degenerate faces have no direction and can share any vertex.
+	 */
+	private boolean isSmooth(int k, float nx, float ny, float nz) {
+		if (nx == 0 && ny == 0 && nz == 0) return true;
+
+		float sx = mSeedNormals.get(k);
+		float sy = mSeedNormals.get(k + 1);
+		float sz = mSeedNormals.get(k + 2);
+
+		if (sx == 0 && sy == 0 && sz == 0) {
+			mSeedNormals.set(k, nx);
+			mSeedNormals.set(k + 1, ny);
+			mSeedNormals.set(k + 2, nz);
+			return true;
+		}
+
+		return sx * nx + sy * ny + sz * nz >= mCosCrease;
+	}
+
+	private void rehash() {
+		mTable = newTable(mTable.length * 2);
+		int mask = mTable.length - 1;
+
+		for (int index = 0; index < mCount; index++) {
+			int k = index * COORDS_PER_VERTEX;
+			int slot = hash(mKeys.get(k), mKeys.get(k + 1), mKeys.get(k + 2)) & mask;
+
+			while (mTable[slot] >= 0) slot = (slot + 1) & mask;
+			mTable[slot] = index;
+		}
+	}
+
+	private static int[] newTable(int minSize) {
+		int size = Integer.highestOneBit(minSize - 1) << 1;
+		int[] table = new int[Math.max(size, 16)];
+		Arrays.fill(table, -1);
+		return table;
+	}
+
+	private static int hash(int x, int y, int z) {
+		int h = x * 73856093 ^ y * 19349663 ^ z * 83492791;
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,202 @@
+package android.app.printerapp.viewer;
+
+import java.util.Arrays;
+
+/**
+ * Reduced version of a big triangle mesh, drawn instead of the full mesh while the user is moving the scene.
+ *
+ * Uses vertex clustering: the bounding box is split in a grid of cubic cells, all the vertices in a cell are
+ * replaced by their mean, and only the triangles whose corners end up in three different cells are kept.
+ * Triangles repeated after clustering are kept once. The result is welded again with IndexedMesh, which also
+ * gives it its normals.
+ *
+ * Plain Java, it doesn't need a GL context.
+ */
+public class MeshDecimator {
+
+	//Cells along the longest side of the model on the first try
+	private static final int INITIAL_GRID = 128;
+	private static final int MIN_GRID = 16;
+
+	private static final int COORDS_PER_VERTEX = 3;
+
+	/**
+	 * @param vertices 3 coordinates per vertex
+	 * @param indices 3 indices per triangle, or null if every 3 vertices are a triangle
+	 * @param targetTriangles approximate number of triangles of the result
+	 * @return the reduced mesh, or null if clustering can't make it smaller than half the original
+	 */
+	public static IndexedMesh decimate(float[] vertices, int[] indices, int targetTriangles) {
+		int triangles = (indices != null ? indices.length : vertices.length / COORDS_PER_VERTEX) / 3;
+
+		float[] reduced = cluster(vertices, indices, INITIAL_GRID);
+
+		//The number of triangles left grows with the square of the grid size on a surface
+		int reducedTriangles = reduced.length / 9;
+		if (reducedTriangles > targetTriangles * 3 / 2 || reducedTriangles < targetTriangles / 2) {
+			int grid = (int) (INITIAL_GRID * Math.sqrt((double) targetTriangles / Math.max(reducedTriangles, 1)));
+			grid = Math.max(MIN_GRID, Math.min(grid, INITIAL_GRID * 4));
+
+			if (grid != INITIAL_GRID) reduced = cluster(vertices, indices, grid);
+		}
+
+		if (reduced.length == 0 || reduced.length / 9 > triangles / 2) return null;
+
+		return new IndexedMesh(reduced);
+	}
+
+	/**
+	 * Triangles left after clustering with this many cells along the longest side, 9 coordinates each
+	 */
+	private static float[] cluster(float[] vertices, int[] indices, int grid) {
+		int count = vertices.length / COORDS_PER_VERTEX;
+
+		float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
+		float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE, maxZ = -Float.MAX_VALUE;
+
+		for (int i = 0; i < vertices.length; i += 3) {
+			minX = Math.min(minX, vertices[i]);
+			maxX = Math.max(maxX, vertices[i]);
+			minY = Math.min(minY, vertices[i + 1]);
+			maxY = Math.max(maxY, vertices[i + 1]);
+			minZ = Math.min(minZ, vertices[i + 2]);
+			maxZ = Math.max(maxZ, vertices[i + 2]);
+		}
+
+		float size = Math.max(maxX - minX, Math.max(maxY - minY, maxZ - minZ));
+		float scale = size > 0 ? grid / size : 0;
+		int cells = grid + 1;
+
+		//Cluster of every vertex, clusters are numbered in order of appearance
+		int[] vertexCluster = new int[count];
+		int[] table = newTable(Math.max(16, Math.min(count, cells * cells * 4)));
+		ChunkedIntArray cellIds = new ChunkedIntArray();
+		ChunkedFloatArray sums = new ChunkedFloatArray();
+		ChunkedIntArray sizes = new ChunkedIntArray();
+		int clusters = 0;
+
+		for (int v = 0; v < count; v++) {
+			int k = v * COORDS_PER_VERTEX;
+			int cx = Math.min((int) ((vertices[k] - minX) * scale), grid);
+			int cy = Math.min((int) ((vertices[k + 1] - minY) * scale), grid);
+			int cz = Math.min((int) ((vertices[k + 2] - minZ) * scale), grid);
+			int cellId = (cx * cells + cy) * cells + cz;
+
+			int mask = table.length - 1;
+			int slot = hash(cellId, 0, 0) & mask;
+			while (table[slot] >= 0 && cellIds.get(table[slot]) != cellId) slot = (slot + 1) & mask;
+
+			int c = table[slot];
+			if (c < 0) {
+				c = clusters++;
+				table[slot] = c;
+				cellIds.add(cellId);
+				sums.add(0);
+				sums.add(0);
+				sums.add(0);
+				sizes.add(0);
+
+				//Keep the table at most half full
+				if (clusters * 2 > table.length) table = rehash(table, clusters, cellIds);
+			}
+
+			int s = c * COORDS_PER_VERTEX;
+			sums.set(s, sums.get(s) + vertices[k]);
+			sums.set(s + 1, sums.get(s + 1) + vertices[k + 1]);
+			sums.set(s + 2, sums.get(s + 2) + vertices[k + 2]);
+			sizes.set(c, sizes.get(c) + 1);
+			vertexCluster[v] = c;
+		}
+
+		float[] centers = sums.freeze();
+		for (int c = 0; c < clusters; c++) {
+			float n = sizes.get(c);
+			centers[c * 3] /= n;
+			centers[c * 3 + 1] /= n;
+			centers[c * 3 + 2] /= n;
+		}
+
+		//Triangles between three clusters, each one once
+		int triangles = (indices != null ? indices.length : count) / 3;
+		int[] triangleTable = newTable(Math.max(16, triangles / 8));
+		ChunkedIntArray kept = new ChunkedIntArray();
+		ChunkedFloatArray result = new ChunkedFloatArray();
+		int keptCount = 0;
+
+		for (int t = 0; t < triangles; t++) {
+			int a = vertexCluster[indices != null ? indices[t * 3] : t * 3];
+			int b = vertexCluster[indices != null ? indices[t * 3 + 1] : t * 3 + 1];
+			int c = vertexCluster[indices != null ? indices[t * 3 + 2] : t * 3 + 2];
+			if (a == b || b == c || a == c) continue;
+
+			//Same triangle with the same orientation gives the same key, starting at the smallest cluster
+			if (b < a && b < c) {
+				int aux = a; a = b; b = c; c = aux;
+			} else if (c < a && c < b) {
+				int aux = c; c = b; b = a; a = aux;
+			}
+
+			int mask = triangleTable.length - 1;
+			int slot = hash(a, b, c) & mask;
+			boolean repeated = false;
+
+			while (triangleTable[slot] >= 0) {
+				int k = triangleTable[slot] * 3;
+				if (kept.get(k) == a && kept.get(k + 1) == b && kept.get(k + 2) == c) {
+					repeated = true;
+					break;
+				}
+				slot = (slot + 1) & mask;
+			}
+			if (repeated) continue;
+
+			triangleTable[slot] = keptCount++;
+			kept.add(a);
+			kept.add(b);
+			kept.add(c);
+
+			for (int corner : new int[] { a, b, c }) {
+				result.add(centers[corner * 3]);
+				result.add(centers[corner * 3 + 1]);
+				result.add(centers[corner * 3 + 2]);
+			}
+
+			if (keptCount * 2 > triangleTable.length) {
+				triangleTable = newTable(triangleTable.length * 2);
+				int tableMask = triangleTable.length - 1;
+
+				for (int i = 0; i < keptCount; i++) {
+					int s = hash(kept.get(i * 3), kept.get(i * 3 + 1), kept.get(i * 3 + 2)) & tableMask;
+					while (triangleTable[s] >= 0) s = (s + 1) & tableMask;
+					triangleTable[s] = i;
+				}
+			}
+		}
+
+		return result.freeze();
+	}
+
+	private static int[] rehash(int[] table, int clusters, ChunkedIntArray cellIds) {
+		int[] newTable = newTable(table.length * 2);
+		int mask = newTable.length - 1;
+
+		for (int c = 0; c < clusters; c++) {
+			int slot = hash(cellIds.get(c), 0, 0) & mask;
+			while (newTable[slot] >= 0) slot = (slot + 1) & mask;
+			newTable[slot] = c;
+		}
+		return newTable;
+	}
+
+	private static int[] newTable(int minSize) {
+		int size = Integer.highestOneBit(minSize - 1) << 1;
+		int[] table = new int[Math.max(size, 16)];
+		Arrays.fill(table, -1);
+		return table;
+	}
+
+	private static int hash(int x, int y, int z) {
+		int h = x * 73856093 ^ y * 19349663 ^ z * 83492791;
+		return h ^ (h >>> 16);
+	}
+}
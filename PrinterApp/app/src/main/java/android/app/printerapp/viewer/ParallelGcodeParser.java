@@ -0,0 +1,231 @@
+package android.app.printerapp.viewer;
+
+import android.app.printerapp.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Parses a big G-code file on several cores.
+ *
+ * The file is split at new line boundaries into one chunk per core and parsed in two passes:
+ *  - Summary pass: every chunk is parsed on its own without storing anything, to know which
+ *    X/Y/Z, type, layer and line length it leaves behind and how many vertices and lines it has.
+ *    The state at the start of each chunk and where it goes in the final arrays are then resolved
+ *    in order from those summaries, which is cheap.
+ *  - Parse pass: the final arrays are allocated at their exact size and every chunk is parsed again
+ *    from its real starting state, straight into its own range of them. Nothing is copied afterwards.
+ *
+ * Both passes use GcodeParser, so the result is the same as parsing the file sequentially.
+ * The arrays are set in the DataStorage, its lists are not used.
+ */
+public class ParallelGcodeParser {
+
+	private static final String TAG = "gcode";
+
+	//Smaller files are not worth the second pass and the threads
+	public static final long MIN_PARALLEL_SIZE = 4 * 1024 * 1024;
+
+	private final DataStorage mData;
+	private final float mOffsetX;
+	private final float mOffsetY;
+	private final int mThreads;
+
+	private final List<GcodeParser> mParsers = new ArrayList<GcodeParser>();
+	private volatile boolean mCancelled = false;
+
+	private int mMaxLayer = -1;
+	private int mLines = 0;
+
+	public ParallelGcodeParser(DataStorage data, float offsetX, float offsetY, int threads) {
+		mData = data;
+		mOffsetX = offsetX;
+		mOffsetY = offsetY;
+		mThreads = threads;
+	}
+
+	public static boolean isWorthParallel(File file) {
+		return file.length() >= MIN_PARALLEL_SIZE && Runtime.getRuntime().availableProcessors() > 1;
+	}
+
+	public void cancel() {
+		mCancelled = true;
+		synchronized (mParsers) {
+			for (GcodeParser parser : mParsers) parser.cancel();
+		}
+	}
+
+	public int getMaxLayer() {
+		return mMaxLayer;
+	}
+
+	public int getLineCount() {
+		return mLines;
+	}
+
+	public void parse(final File file, final GcodeParser.ProgressListener listener) throws IOException {
+		final long[] bounds = splitAtLines(file, mThreads);
+		final int chunks = bounds.length - 1;
+
+		//Both passes read the whole file, progress goes over twice its size
+		final long totalBytes = 2 * file.length();
+		final AtomicLong consumed = new AtomicLong();
+
+		ExecutorService executor = Executors.newFixedThreadPool(chunks);
+
+		try {
+			//Summary pass
+			List<Future<GcodeParser>> summaries = new ArrayList<Future<GcodeParser>>();
+			for (int i = 0; i < chunks; i++) {
+				summaries.add(executor.submit(createTask(new GcodeParser(null, mOffsetX, mOffsetY), file,
+						bounds[i], bounds[i + 1], null, consumed, totalBytes, listener)));
+			}
+
+			GcodeParser.State[] startStates = new GcodeParser.State[chunks];
+			int[] firstVertex = new int[chunks + 1];
+			int[] firstLine = new int[chunks + 1];
+			startStates[0] = new GcodeParser.State();
+			for (int i = 0; i < chunks; i++) {
+				GcodeParser summary = get(summaries.get(i));
+				if (i + 1 < chunks) startStates[i + 1] = startStates[i].then(summary.getState());
+				firstVertex[i + 1] = firstVertex[i] + summary.getVertexCount();
+				firstLine[i + 1] = firstLine[i] + summary.getLineLengthCount();
+			}
+			if (mCancelled) return;
+
+			//Parse pass
+			int vertices = firstVertex[chunks];
+			float[] vertexArray = new float[vertices * 3];
+			int[] layerArray = new int[vertices];
+			byte[] typeArray = new byte[vertices];
+			int[] lineLengthArray = new int[firstLine[chunks]];
+
+			List<Future<GcodeParser>> parts = new ArrayList<Future<GcodeParser>>();
+			for (int i = 0; i < chunks; i++) {
+				GcodeParser parser = new GcodeParser(vertexArray, layerArray, typeArray, lineLengthArray,
+						firstVertex[i], firstLine[i], mOffsetX, mOffsetY);
+				parts.add(executor.submit(createTask(parser, file, bounds[i], bounds[i + 1], startStates[i],
+						consumed, totalBytes, listener)));
+			}
+
+			for (int i = 0; i < chunks; i++) {
+				GcodeParser parser = get(parts.get(i));
+				if (mCancelled) return;
+
+				//The first vertex of a line written by the previous chunk, in order like a sequential parse would
+				if (parser.hasPendingType() && firstVertex[i] > 0)
+					typeArray[firstVertex[i] - 1] = (byte) parser.getPendingType();
+
+				parser.mergeBounds(mData);
+
+				if (parser.getMaxLayer() > mMaxLayer) mMaxLayer = parser.getMaxLayer();
+				mLines += parser.getLineCount();
+			}
+
+			if (vertices > 0) {
+				mData.setVertexArray(vertexArray);
+				mData.setLayerArray(layerArray);
+				mData.setTypeArray(typeArray);
+				mData.setLineLengthArray(lineLengthArray);
+			}
+
+		} finally {
+			executor.shutdownNow();
+		}
+
+		Log.i(TAG, "GCODE parsed in " + chunks + " chunks");
+	}
+
+	private Callable<GcodeParser> createTask(final GcodeParser parser, final File file, final long from, final long to,
+			final GcodeParser.State state, final AtomicLong consumed, final long totalBytes,
+			final GcodeParser.ProgressListener listener) {
+
+		if (state != null) parser.setState(state);
+
+		synchronized (mParsers) {
+			if (mCancelled) parser.cancel();
+			mParsers.add(parser);
+		}
+
+		return new Callable<GcodeParser>() {
+			private long mLastBytes = 0;
+
+			@Override
+			public GcodeParser call() throws Exception {
+				parser.parse(file, from, to, new GcodeParser.ProgressListener() {
+					@Override
+					public void onProgress(long bytesRead, long chunkBytes) {
+						long total = consumed.addAndGet(bytesRead - mLastBytes);
+						mLastBytes = bytesRead;
+						if (listener != null) listener.onProgress(total, totalBytes);
+					}
+				});
+				return parser;
+			}
+		};
+	}
+
+	private static GcodeParser get(Future<GcodeParser> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e.toString());
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause().toString());
+		}
+	}
+
+	/**
+	 * Offsets splitting the file in at most count chunks of similar size, every offset except the last
+	 * one is the first byte of a line.
+	 */
+	static long[] splitAtLines(File file, int count) throws IOException {
+		long length = file.length();
+		List<Long> bounds = new ArrayList<Long>();
+		bounds.add(0L);
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			byte[] buffer = new byte[4096];
+
+			for (int i = 1; i < count; i++) {
+				long pos = Math.max(length * i / count, bounds.get(bounds.size() - 1));
+				long lineStart = -1;
+
+				raf.seek(pos);
+				while (lineStart < 0) {
+					int read = raf.read(buffer);
+					if (read < 0) break;
+					for (int j = 0; j < read; j++) {
+						if (buffer[j] == '\n') {
+							lineStart = pos + j + 1;
+							break;
+						}
+					}
+					pos += read;
+				}
+
+				if (lineStart < 0 || lineStart >= length) break;
+				if (lineStart > bounds.get(bounds.size() - 1)) bounds.add(lineStart);
+			}
+		} finally {
+			raf.close();
+		}
+
+		bounds.add(length);
+
+		long[] result = new long[bounds.size()];
+		for (int i = 0; i < result.length; i++) result[i] = bounds.get(i);
+		return result;
+	}
+}
@@ -0,0 +1,233 @@
+package android.app.printerapp.viewer;
+
+import android.app.printerapp.viewer.Geometry.Point;
+import android.opengl.Matrix;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Packs the XY footprints of the models onto the plate with a maximal rectangles packer.
+ *
+ * The free space is kept as the list of all the largest empty rectangles of the plate, which may overlap each other.
+ * Each footprint goes to the free rectangle where it leaves the shortest leftover side (best short side fit), then
+ * every free rectangle it touches is split around it. Footprints are grown by GAP so the models don't touch.
+ *
+ * Models can be turned 90 degrees around Z if they fit better that way, only when they are scaled the same in X and Y
+ * so the turned footprint is the same one swapped.
+ */
+public class PlateArranger {
+
+	//Space between models, in mm
+	public static final float GAP = 5f;
+
+	private final List<float[]> mFree = new ArrayList<float[]>();
+	private final List<float[]> mCreated = new ArrayList<float[]>();
+
+	//Result of the last search: x, y, and whether it's turned
+	private float mFoundX;
+	private float mFoundY;
+	private boolean mFoundTurned;
+
+	private PlateArranger(int[] plate) {
+		//The plate grows by a gap too, so the models can reach its border
+		mFree.add(new float[] { 0, 0, plate[0] * 2 + GAP, plate[1] * 2 + GAP });
+	}
+
+	/**
+	 * Place the models from the index on in the free space left by the ones before, which don't move.
+	 *
+	 * @return how many of them were placed, it stops at the first that doesn't fit
+	 */
+	public static int place(List<DataStorage> objects, int from, int[] plate, boolean turn) {
+		PlateArranger arranger = new PlateArranger(plate);
+
+		for (int i = 0; i < from; i++) {
+			DataStorage d = objects.get(i);
+			arranger.occupy(d.getMinX() + plate[0], d.getMinY() + plate[1], d.getLong() + GAP, d.getWidth() + GAP);
+		}
+
+		for (int i = from; i < objects.size(); i++) {
+			DataStorage d = objects.get(i);
+			if (!arranger.find(d.getLong() + GAP, d.getWidth() + GAP, turn && canTurn(d))) return i - from;
+
+			arranger.put(d, plate);
+		}
+
+		return objects.size() - from;
+	}
+
+	/**
+	 * Pack all the models on the plate again, biggest first. If they don't all fit, none of them moves.
+	 */
+	public static boolean arrange(List<DataStorage> objects, int[] plate, boolean turn) {
+		DataStorage[] sorted = objects.toArray(new DataStorage[objects.size()]);
+		Arrays.sort(sorted, new Comparator<DataStorage>() {
+			@Override
+			public int compare(DataStorage a, DataStorage b) {
+				return Float.compare(b.getLong() * b.getWidth(), a.getLong() * a.getWidth());
+			}
+		});
+
+		PlateArranger arranger = new PlateArranger(plate);
+		float[] places = new float[sorted.length * 2];
+		boolean[] turned = new boolean[sorted.length];
+
+		for (int i = 0; i < sorted.length; i++) {
+			DataStorage d = sorted[i];
+			float width = d.getLong() + GAP;
+			float depth = d.getWidth() + GAP;
+
+			if (!arranger.find(width, depth, turn && canTurn(d))) return false;
+
+			places[i * 2] = arranger.mFoundX;
+			places[i * 2 + 1] = arranger.mFoundY;
+			turned[i] = arranger.mFoundTurned;
+
+			if (turned[i]) arranger.occupy(arranger.mFoundX, arranger.mFoundY, depth, width);
+			else arranger.occupy(arranger.mFoundX, arranger.mFoundY, width, depth);
+		}
+
+		for (int i = 0; i < sorted.length; i++) {
+			if (turned[i]) turn(sorted[i]);
+			move(sorted[i], places[i * 2] - plate[0], places[i * 2 + 1] - plate[1]);
+		}
+
+		return true;
+	}
+
+	//Move the model found by the last search to its place and take the space
+	private void put(DataStorage d, int[] plate) {
+		if (mFoundTurned) turn(d);
+		move(d, mFoundX - plate[0], mFoundY - plate[1]);
+
+		occupy(mFoundX, mFoundY, d.getLong() + GAP, d.getWidth() + GAP);
+	}
+
+	/**
+	 * Best short side fit among the free rectangles, in both orientations if it can turn
+	 */
+	private boolean find(float width, float depth, boolean turn) {
+		float bestShort = Float.MAX_VALUE;
+		float bestLong = Float.MAX_VALUE;
+		boolean found = false;
+
+		for (float[] free : mFree) {
+			for (int k = 0; k < (turn ? 2 : 1); k++) {
+				float w = (k == 0) ? width : depth;
+				float h = (k == 0) ? depth : width;
+				if (w > free[2] || h > free[3]) continue;
+
+				float leftX = free[2] - w;
+				float leftY = free[3] - h;
+				float shortSide = Math.min(leftX, leftY);
+				float longSide = Math.max(leftX, leftY);
+
+				if (shortSide < bestShort || (shortSide == bestShort && longSide < bestLong)) {
+					bestShort = shortSide;
+					bestLong = longSide;
+					mFoundX = free[0];
+					mFoundY = free[1];
+					mFoundTurned = k == 1;
+					found = true;
+				}
+			}
+		}
+
+		return found;
+	}
+
+	/**
+	 * Split every free rectangle that overlaps the used one in the up to four maximal rectangles around it
+	 */
+	private void occupy(float x, float y, float width, float depth) {
+		float maxX = x + width;
+		float maxY = y + depth;
+
+		mCreated.clear();
+		for (int i = mFree.size() - 1; i >= 0; i--) {
+			float[] free = mFree.get(i);
+			float freeMaxX = free[0] + free[2];
+			float freeMaxY = free[1] + free[3];
+
+			if (x >= freeMaxX || maxX <= free[0] || y >= freeMaxY || maxY <= free[1]) continue;
+
+			if (x > free[0]) mCreated.add(new float[] { free[0], free[1], x - free[0], free[3] });
+			if (maxX < freeMaxX) mCreated.add(new float[] { maxX, free[1], freeMaxX - maxX, free[3] });
+			if (y > free[1]) mCreated.add(new float[] { free[0], free[1], free[2], y - free[1] });
+			if (maxY < freeMaxY) mCreated.add(new float[] { free[0], maxY, free[2], freeMaxY - maxY });
+
+			//Swap with the last one, the order doesn't matter
+			mFree.set(i, mFree.get(mFree.size() - 1));
+			mFree.remove(mFree.size() - 1);
+		}
+
+		//The old rectangles don't contain each other and can't be inside the new ones, which come from old ones
+		for (int i = 0; i < mCreated.size(); i++) {
+			float[] created = mCreated.get(i);
+			boolean contained = false;
+
+			for (int j = 0; j < mCreated.size() && !contained; j++) {
+				//Of two equal ones, only the first is kept
+				float[] other = mCreated.get(j);
+				if (j != i && contains(other, created) && (j < i || !contains(created, other))) contained = true;
+			}
+			for (int j = 0; j < mFree.size() && !contained; j++) {
+				if (contains(mFree.get(j), created)) contained = true;
+			}
+
+			if (!contained) mFree.add(created);
+		}
+	}
+
+	private static boolean contains(float[] a, float[] b) {
+		return b[0] >= a[0] && b[1] >= a[1] && b[0] + b[2] <= a[0] + a[2] && b[1] + b[3] <= a[1] + a[3];
+	}
+
+	private static boolean canTurn(DataStorage d) {
+		return d.getLastScaleFactorX() > 0 && d.getLastScaleFactorX() == d.getLastScaleFactorY();
+	}
+
+	/**
+	 * Turn the model 90 degrees around Z on its center, the footprint turns with it
+	 */
+	private static void turn(DataStorage d) {
+		float[] rotation = new float[16];
+		float[] result = new float[16];
+		Matrix.setRotateM(rotation, 0, 90, 0, 0, 1);
+		Matrix.multiplyMM(result, 0, rotation, 0, d.getRotationMatrix(), 0);
+		d.setRotationMatrix(result);
+
+		Point center = d.getLastCenter();
+		float minX = d.getMinX() - center.x;
+		float maxX = d.getMaxX() - center.x;
+		float minY = d.getMinY() - center.y;
+		float maxY = d.getMaxY() - center.y;
+
+		//(x, y) goes to (-y, x)
+		d.setMinX(center.x - maxY);
+		d.setMaxX(center.x - minY);
+		d.setMinY(center.y + minX);
+		d.setMaxY(center.y + maxX);
+	}
+
+	/**
+	 * Move the model so the corner of its footprint is at x, y
+	 */
+	private static void move(DataStorage d, float x, float y) {
+		float dx = x - d.getMinX();
+		float dy = y - d.getMinY();
+
+		d.setMinX(d.getMinX() + dx);
+		d.setMaxX(d.getMaxX() + dx);
+		d.setMinY(d.getMinY() + dy);
+		d.setMaxY(d.getMaxY() + dy);
+
+		Point center = d.getLastCenter();
+		d.setLastCenter(new Point(center.x + dx, center.y + dy, center.z));
+
+		Geometry.refreshModelMatrix(d);
+	}
+}
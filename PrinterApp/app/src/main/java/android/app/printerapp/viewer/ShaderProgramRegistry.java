@@ -0,0 +1,115 @@
+package android.app.printerapp.viewer;
+
+import android.app.printerapp.Log;
+import android.opengl.GLES20;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Shader programs of a renderer, shared by all the objects drawn with them.
+ *
+ * Every pair of shaders is compiled and linked once per GL context, and the locations of its attributes and
+ * uniforms are looked up right after linking, so drawing only reads them. Like the buffer names, programs belong
+ * to the GL context of the renderer, so there is one registry per renderer and onContextLost() must be called
+ * when a new context is created. Only from the GL thread.
+ */
+public class ShaderProgramRegistry {
+
+	private static final String TAG = "ShaderProgramRegistry";
+
+	/**
+	 * A linked program and the locations of the attributes and uniforms used by the objects, -1 for the ones
+	 * its shaders don't have
+	 */
+	public static class Program {
+		private final int mId;
+
+		public final int aPosition;
+		public final int aNormal;
+		public final int aType;
+
+		public final int uMVPMatrix;
+		public final int uMVMatrix;
+		public final int uMMatrix;
+		public final int uLightPos;
+		public final int uColor;
+		public final int uColorOverhang;
+		public final int uCosAngle;
+		public final int uPalette;
+
+		private Program(int id) {
+			mId = id;
+
+			aPosition = GLES20.glGetAttribLocation(id, "a_Position");
+			aNormal = GLES20.glGetAttribLocation(id, "a_Normal");
+			aType = GLES20.glGetAttribLocation(id, "a_Type");
+
+			uMVPMatrix = GLES20.glGetUniformLocation(id, "u_MVPMatrix");
+			uMVMatrix = GLES20.glGetUniformLocation(id, "u_MVMatrix");
+			uMMatrix = GLES20.glGetUniformLocation(id, "u_MMatrix");
+			uLightPos = GLES20.glGetUniformLocation(id, "u_LightPos");
+			uColor = GLES20.glGetUniformLocation(id, "a_Color");
+			uColorOverhang = GLES20.glGetUniformLocation(id, "a_ColorOverhang");
+			uCosAngle = GLES20.glGetUniformLocation(id, "a_CosAngle");
+			uPalette = GLES20.glGetUniformLocation(id, "u_Palette");
+		}
+
+		public int getId() {
+			return mId;
+		}
+
+		public void use() {
+			GLES20.glUseProgram(mId);
+		}
+	}
+
+	private final Map<String, Program> mPrograms = new HashMap<String, Program>();
+
+	/**
+	 * The program made of these shaders, linked the first time it's asked for in this context.
+	 *
+	 * @param attributes names bound to the attribute locations 0, 1... in this order before linking
+	 */
+	public Program getProgram(String vertexShaderCode, String fragmentShaderCode, String... attributes) {
+		String key = vertexShaderCode + '\0' + fragmentShaderCode;
+
+		Program program = mPrograms.get(key);
+		if (program == null) {
+			program = link(vertexShaderCode, fragmentShaderCode, attributes);
+			mPrograms.put(key, program);
+		}
+		return program;
+	}
+
+	/**
+	 * The GL context was recreated and the old programs are gone with it, forget them without deleting
+	 */
+	public void onContextLost() {
+		mPrograms.clear();
+	}
+
+	private Program link(String vertexShaderCode, String fragmentShaderCode, String[] attributes) {
+		int vertexShader = ViewerRenderer.loadShader(GLES20.GL_VERTEX_SHADER, vertexShaderCode);
+		int fragmentShader = ViewerRenderer.loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentShaderCode);
+
+		int id = GLES20.glCreateProgram();
+		GLES20.glAttachShader(id, vertexShader);
+		GLES20.glAttachShader(id, fragmentShader);
+
+		for (int i = 0; i < attributes.length; i++) GLES20.glBindAttribLocation(id, i, attributes[i]);
+
+		GLES20.glLinkProgram(id);
+
+		//Only flagged, they go away with the program
+		GLES20.glDeleteShader(vertexShader);
+		GLES20.glDeleteShader(fragmentShader);
+
+		int[] status = new int[1];
+		GLES20.glGetProgramiv(id, GLES20.GL_LINK_STATUS, status, 0);
+		if (status[0] == 0) Log.e(TAG, "Error linking program: " + GLES20.glGetProgramInfoLog(id));
+		else Log.i(TAG, "Linked program " + id + ", " + (mPrograms.size() + 1) + " in this context");
+
+		return new Program(id);
+	}
+}
@@ -17,7 +17,6 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.util.List;
 import java.util.Random;
 import java.util.Timer;
@@ -30,8 +29,6 @@ public class SlicingHandler {
 
     private static final int DELAY = 3000; //timer delay just in case
 
-    //Data array to send to the server
-    private byte[] mData = null;
     private List<DataStorage> mDataList = null;
 
     private Activity mActivity;
@@ -63,12 +60,6 @@ public class SlicingHandler {
     }
 
 
-    public void  setData(byte[] data){
-
-        mData = data;
-
-    }
-
     public void clearExtras(){
 
         mExtras = new JSONObject();
@@ -155,12 +146,8 @@ public class SlicingHandler {
                 DatabaseController.handlePreference(DatabaseController.TAG_SLICING, "Last", tempFile.getName(), true);
 
 
-                StlFile.saveModel(mDataList,null,SlicingHandler.this);
-
-                FileOutputStream fos = new FileOutputStream(tempFile);
-                fos.write(mData);
-                fos.getFD().sync();
-                fos.close();
+                //Streamed straight to the file and synced
+                StlFile.writeModel(mDataList, tempFile);
 
             } else {
 
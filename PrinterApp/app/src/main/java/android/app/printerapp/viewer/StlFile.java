@@ -9,8 +9,6 @@ import android.app.printerapp.viewer.Geometry.Point;
 import android.app.printerapp.viewer.Geometry.Vector;
 import android.content.Context;
 import android.content.DialogInterface;
-import android.net.Uri;
-import android.opengl.Matrix;
 import android.os.Handler;
 import android.os.Message;
 import android.os.SystemClock;
@@ -18,16 +16,18 @@ import android.widget.LinearLayout;
 import android.widget.Toast;
 
 import com.alertdialogpro.ProgressDialogPro;
-import com.devsmart.android.IOUtils;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.List;
 
 
@@ -49,7 +49,15 @@ public class StlFile {
     private static final int COORDS_PER_TRIANGLE = 9;
     private static int mMode;
 
-    private static final int MAX_SIZE = 50000000; //50Mb
+    //Binary STL layout: 80 bytes header + triangle count, then 50 bytes per triangle
+    private static final int BINARY_HEADER_SIZE = 84;
+    private static final int BINARY_TRIANGLE_SIZE = 50;
+
+    //Triangles transformed and written at a time by writeModel, through a buffer reused between calls
+    private static final int WRITE_BATCH_TRIANGLES = 4096;
+    private static ByteBuffer mWriteBuffer;
+
+    private static boolean mIndexedMesh = true;
 
 
     public static void openStlFile(Context context, File file, DataStorage data, int mode) {
@@ -66,31 +74,30 @@ public class StlFile {
         mData = data;
 
         mFile = file;
-        Uri uri = Uri.fromFile(file);
 
         mData.setPathFile(mFile.getAbsolutePath());
         mData.initMaxMin();
 
 
-        startThreadToOpenFile(context, uri);
+        startThreadToOpenFile(context);
 
 
     }
 
-    public static void startThreadToOpenFile(final Context context, final Uri uri) {
+    public static void startThreadToOpenFile(final Context context) {
 
         mThread = new Thread() {
             @Override
             public void run() {
-                byte[] arrayBytes = toByteArray(context, uri);
+                final DataStorage data = mData;
 
                 try {
-                    if (isText(arrayBytes)) {
+                    if (isBinary(mFile)) {
+                        Log.e(TAG, "trying binary...");
+                        if (mContinueThread) processBinary(mFile);
+                    } else {
                         Log.e(TAG, "trying text... ");
                         if (mContinueThread) processText(mFile);
-                    } else {
-                        Log.e(TAG, "trying binary...");
-                        if (mContinueThread) processBinary(arrayBytes);
                     }
 
 
@@ -98,7 +105,17 @@ public class StlFile {
                     e.printStackTrace();
                 }
 
+                //Welding a big mesh takes a while, keep it out of the UI thread
+                if (mContinueThread && mData.getCoordinateListSize() > 0) fillArrays();
+
                 if (mContinueThread) mHandler.sendEmptyMessage(0);
+
+                //The model is already on screen, the picking hierarchy, the hull and the reduced mesh are used once they are ready
+                if (mContinueThread && mMode == ViewerMainFragment.DONT_SNAPSHOT && data.getVertexArray() != null) {
+                    data.buildBvh();
+                    data.buildHull();
+                    data.buildLodMesh();
+                }
             }
         };
 
@@ -107,38 +124,44 @@ public class StlFile {
 
     }
 
+    private static void fillArrays() {
+        mData.fillVertexArray(true);
+
+        if (mIndexedMesh) mData.fillIndexedMesh();
+        else mData.fillNormalArray();
+
+        mData.clearNormalList();
+        mData.clearVertexList();
+    }
 
-    private static byte[] toByteArray(Context context, Uri filePath) {
-        InputStream inputStream = null;
-        byte[] arrayBytes = null;
+    /**
+     * Shared vertices with an index array instead of three vertices per triangle, see IndexedMesh
+     */
+    public static void setIndexedMesh(boolean indexed) {
+        mIndexedMesh = indexed;
+    }
+
+    /**
+     * Detect the format from the header only. A binary file must be exactly 84 + 50 * n bytes long,
+     * n being the triangle count in the header. Some exporters also start binary files with "solid",
+     * so the name is only used when the size does not match.
+     */
+    private static boolean isBinary(File file) throws IOException {
+        long length = file.length();
+        if (length < BINARY_HEADER_SIZE) return false;
+
+        byte[] header = new byte[BINARY_HEADER_SIZE];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
         try {
-            inputStream = context.getContentResolver().openInputStream(filePath);
-            arrayBytes = IOUtils.toByteArray(inputStream);
-        } catch (Exception e) {
-            e.printStackTrace();
+            raf.readFully(header);
         } finally {
-            try {
-                inputStream.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            raf.close();
         }
 
-        return arrayBytes;
-    }
+        long triangles = getIntWithLittleEndian(header, 80) & 0xffffffffL;
+        if (BINARY_HEADER_SIZE + triangles * BINARY_TRIANGLE_SIZE == length) return true;
 
-    private static boolean isText(byte[] bytes) {
-        for (byte b : bytes) {
-            if (b == 0x0a || b == 0x0d || b == 0x09) {
-                // white spaces
-                continue;
-            }
-            if (b < 0x20 || (0xff & b) >= 0x80) {
-                // control codes
-                return false;
-            }
-        }
-        return true;
+        return !new String(header, 0, 5, "US-ASCII").equalsIgnoreCase("solid");
     }
 
 
@@ -187,22 +210,13 @@ public class StlFile {
     private static Handler mHandler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
-            if (mData.getCoordinateListSize() < 1) {
+            if (mData.getVertexArray() == null) {
                 Toast.makeText(mContext, R.string.error_opening_invalid_file, Toast.LENGTH_SHORT).show();
                 ViewerMainFragment.resetWhenCancel();
                 if (mMode != ViewerMainFragment.DO_SNAPSHOT) mProgressDialog.dismiss();
                 return;
             }
 
-            //only center again if it's a new file
-            if ((mFile.getName().substring(0, 3)).contains("tmp")) {
-                mData.fillVertexArray(true);
-            } else mData.fillVertexArray(true);
-            mData.fillNormalArray();
-
-            mData.clearNormalList();
-            mData.clearVertexList();
-
     		//Finish
 			if (mMode== ViewerMainFragment.DONT_SNAPSHOT) {
 				ViewerMainFragment.draw();
@@ -319,61 +333,91 @@ public class StlFile {
 
     }
 
-    private static void processBinary(byte[] stlBytes) throws Exception {
-
-        int vectorSize = getIntWithLittleEndian(stlBytes, 80);
-
-        if (mMode != ViewerMainFragment.DO_SNAPSHOT) mProgressDialog.setMax(vectorSize);
-
-        float milis = SystemClock.currentThreadTimeMillis();
-
-        for (int i = 0; i < vectorSize; i++) {
-            if (!mContinueThread) break;
-
-            float x = Float.intBitsToFloat(getIntWithLittleEndian(stlBytes, 84 + i * 50 + 12));
-            float y = Float.intBitsToFloat(getIntWithLittleEndian(stlBytes, 84 + i * 50 + 16));
-            float z = Float.intBitsToFloat(getIntWithLittleEndian(stlBytes, 84 + i * 50 + 20));
-            Vector v0 = new Vector(x, y, z);
-
-            mData.adjustMaxMin(x, y, z);
-            mData.addVertex(x);
-            mData.addVertex(y);
-            mData.addVertex(z);
-
+    /**
+     * Read the triangles straight from a read-only little endian mapping of the file,
+     * so the file content is never copied to the heap.
+     * Records are 50 bytes long, which breaks the 4 byte alignment a FloatBuffer view would need,
+     * so floats are read with absolute gets on the mapped buffer instead.
+     */
+    private static void processBinary(File file) throws Exception {
 
-            x = Float.intBitsToFloat(getIntWithLittleEndian(stlBytes, 84 + i * 50 + 24));
-            y = Float.intBitsToFloat(getIntWithLittleEndian(stlBytes, 84 + i * 50 + 28));
-            z = Float.intBitsToFloat(getIntWithLittleEndian(stlBytes, 84 + i * 50 + 32));
-            Vector v1 = new Vector(x, y, z);
+        FileInputStream fis = new FileInputStream(file);
 
-            mData.adjustMaxMin(x, y, z);
-            mData.addVertex(x);
-            mData.addVertex(y);
-            mData.addVertex(z);
+        try {
+            FileChannel channel = fis.getChannel();
+            MappedByteBuffer stlBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            stlBuffer.order(ByteOrder.LITTLE_ENDIAN);
 
-            x = Float.intBitsToFloat(getIntWithLittleEndian(stlBytes, 84 + i * 50 + 36));
-            y = Float.intBitsToFloat(getIntWithLittleEndian(stlBytes, 84 + i * 50 + 40));
-            z = Float.intBitsToFloat(getIntWithLittleEndian(stlBytes, 84 + i * 50 + 44));
-            Vector v2 = new Vector(x, y, z);
+            //Never trust the header count beyond what is actually in the file
+            long available = (channel.size() - BINARY_HEADER_SIZE) / BINARY_TRIANGLE_SIZE;
+            int vectorSize = (int) Math.min(stlBuffer.getInt(80) & 0xffffffffL, available);
 
-            mData.adjustMaxMin(x, y, z);
-            mData.addVertex(x);
-            mData.addVertex(y);
-            mData.addVertex(z);
+            if (mMode != ViewerMainFragment.DO_SNAPSHOT) mProgressDialog.setMax(vectorSize);
 
-            //Calculate triangle normal vector
-            Vector normal = Vector.normalize(Vector.crossProduct(Vector.substract(v1, v0), Vector.substract(v2, v0)));
+            mData.reserveTriangles(vectorSize);
 
-            mData.addNormal(normal.x);
-            mData.addNormal(normal.y);
-            mData.addNormal(normal.z);
+            int progressStep = Math.max(1, vectorSize / 10);
 
+            float milis = SystemClock.currentThreadTimeMillis();
 
-            if (i % (vectorSize / 10) == 0) {
-                if (mMode != ViewerMainFragment.DO_SNAPSHOT) mProgressDialog.setProgress(i);
+            for (int i = 0; i < vectorSize; i++) {
+                if (!mContinueThread) break;
+
+                //Skip the stored normal, it is recalculated from the vertices
+                int offset = BINARY_HEADER_SIZE + i * BINARY_TRIANGLE_SIZE + 12;
+
+                float x0 = stlBuffer.getFloat(offset);
+                float y0 = stlBuffer.getFloat(offset + 4);
+                float z0 = stlBuffer.getFloat(offset + 8);
+                float x1 = stlBuffer.getFloat(offset + 12);
+                float y1 = stlBuffer.getFloat(offset + 16);
+                float z1 = stlBuffer.getFloat(offset + 20);
+                float x2 = stlBuffer.getFloat(offset + 24);
+                float y2 = stlBuffer.getFloat(offset + 28);
+                float z2 = stlBuffer.getFloat(offset + 32);
+
+                mData.adjustMaxMin(x0, y0, z0);
+                mData.addVertex(x0);
+                mData.addVertex(y0);
+                mData.addVertex(z0);
+
+                mData.adjustMaxMin(x1, y1, z1);
+                mData.addVertex(x1);
+                mData.addVertex(y1);
+                mData.addVertex(z1);
+
+                mData.adjustMaxMin(x2, y2, z2);
+                mData.addVertex(x2);
+                mData.addVertex(y2);
+                mData.addVertex(z2);
+
+                //Calculate triangle normal vector, (v1 - v0) x (v2 - v0)
+                float ax = x1 - x0;
+                float ay = y1 - y0;
+                float az = z1 - z0;
+                float bx = x2 - x0;
+                float by = y2 - y0;
+                float bz = z2 - z0;
+
+                float nx = (ay * bz) - (az * by);
+                float ny = (az * bx) - (ax * bz);
+                float nz = (ax * by) - (ay * bx);
+                float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+
+                mData.addNormal(nx / length);
+                mData.addNormal(ny / length);
+                mData.addNormal(nz / length);
+
+
+                if (i % progressStep == 0) {
+                    if (mMode != ViewerMainFragment.DO_SNAPSHOT) mProgressDialog.setProgress(i);
+                }
             }
+            Log.i(TAG, "STL [BINARY] Read & Processed in: " + (SystemClock.currentThreadTimeMillis() - milis));
+
+        } finally {
+            fis.close();
         }
-        Log.i(TAG, "STL [BINARY] Read & Processed in: " + (SystemClock.currentThreadTimeMillis() - milis));
 
         Log.i("Slicer", "Sizes: \n" +
                 "Width" + (mData.getMaxX() - mData.getMinX()) + "\n" +
@@ -383,23 +427,6 @@ public class StlFile {
 
     }
 
-    private static float[] setTransformationVector(float x, float y, float z, float[] rotationMatrix, float scaleFactorX, float scaleFactorY, float scaleFactorZ, float adjustZ, Point center) {
-        float[] vector = new float[4];
-        float[] result = new float[4];
-
-        vector[0] = x;
-        vector[1] = y;
-        vector[2] = z;
-
-        Matrix.multiplyMV(result, 0, rotationMatrix, 0, vector, 0);
-
-        result[0] = result[0] * scaleFactorX + center.x;
-        result[1] = result[1] * scaleFactorY + center.y;
-        result[2] = result[2] * scaleFactorZ + center.z + adjustZ;
-
-        return result;
-    }
-
     public static boolean checkIfNameExists(String projectName) {
         File check = new File(LibraryController.getParentFolder().getAbsolutePath() + "/Files/" + projectName);
         if (check.exists()) return true;
@@ -408,126 +435,144 @@ public class StlFile {
     }
 
     /**
-     * This method will save the model to a file, either to slice or to make a new project.
-     * I made a few adjustment to select between the two types of file creation. (Alberto)
+     * This method will save the model to a new project, see writeModel.
      *
      * @param dataList
      * @param projectName
      */
-    public static boolean saveModel(List<DataStorage> dataList, String projectName, SlicingHandler slicer) {
-        float[] coordinates = null;
-        int coordinateCount = 0;
-        float[] rotationMatrix = new float[16];
-        float scaleFactorX = 0;
-        float scaleFactorY = 0;
-        float scaleFactorZ = 0;
-        Point center = new Point(0, 0, 0);
-        float adjustZ = 0;
-        float[] vector = new float[3];
-
-        //Calculating buffer size
+    public static boolean saveModel(List<DataStorage> dataList, String projectName) {
+        String path = LibraryController.getParentFolder().getAbsolutePath() + "/" + projectName + ".stl";
+        File file = new File(path);
+
+        if (!writeModel(dataList, file)) return false;
+
+        LibraryModelCreation.createFolderStructure(mContext, file);
+        file.delete();
+
+        return true;
+    }
+
+    /**
+     * Write every model of the plate, in its current position, to a binary STL file.
+     *
+     * Triangles are transformed by a TransformKernel and written in batches through a direct buffer reused between calls,
+     * so the memory needed doesn't depend on the size of the plate.
+     *
+     * @return false if there is nothing to save or the file couldn't be written
+     */
+    public static synchronized boolean writeModel(List<DataStorage> dataList, File file) {
+        long triangleCount = 0;
+
         for (int i = 0; i < dataList.size(); i++)
-            coordinateCount += dataList.get(i).getVertexArray().length;
+            triangleCount += dataList.get(i).getTriangleCount();
 
-        if (coordinateCount == 0) {
+        if (triangleCount == 0) {
             return false;
         }
 
-        //Each triangle has 3 vertex with 3 coordinates each. COORDS_PER_TRIANGLE = 9
-        int normals = (coordinateCount / COORDS_PER_TRIANGLE) * 3; //number of normals coordinates in the file
+        Log.i("Slicer", "Saving new model");
 
-        //The file consists of the header, the vertex and normal coordinates (4 bytes per component) and
-        //a flag (2 bytes per triangle) to indicate the final of the triangle.
-        ByteBuffer bb = ByteBuffer.allocate(84 + (coordinateCount + normals) * 4 + coordinateCount * 2);
-        bb.order(ByteOrder.LITTLE_ENDIAN);
+        FileOutputStream fos = null;
 
-        //TODO Out of Memory when saving file to slice
+        try {
+            fos = new FileOutputStream(file);
+            FileChannel channel = fos.getChannel();
 
-        //Header
-        byte[] header = new byte[80];
-        bb.put(header);
+            if (mWriteBuffer == null) {
+                mWriteBuffer = ByteBuffer.allocateDirect(WRITE_BATCH_TRIANGLES * BINARY_TRIANGLE_SIZE);
+                mWriteBuffer.order(ByteOrder.LITTLE_ENDIAN);
+            }
+            ByteBuffer bb = mWriteBuffer;
+            bb.clear();
 
-        //Number of triangles
-        bb.putInt(coordinateCount / COORDS_PER_TRIANGLE);
+            //Header
+            byte[] header = new byte[BINARY_HEADER_SIZE - 4];
+            bb.put(header);
 
-        Log.i("Slicer", "Saving new model");
+            //Number of triangles
+            bb.putInt((int) triangleCount);
 
-        for (int i = 0; i < dataList.size(); i++) {
-            DataStorage data = dataList.get(i);
-            rotationMatrix = data.getRotationMatrix();
-            scaleFactorX = data.getLastScaleFactorX();
-            scaleFactorY = data.getLastScaleFactorY();
-            scaleFactorZ = data.getLastScaleFactorZ();
-            adjustZ = data.getAdjustZ();
-            center = data.getLastCenter();
-            coordinates = data.getVertexArray();
-
-            for (int j = 0; j < coordinates.length; j += 9) {
-
-                //Normal data. It is not necessary to store the info
-                bb.putFloat(0);
-                bb.putFloat(0);
-                bb.putFloat(0);
-
-                //Triangle Data, 3 vertex with 3 coordinates (x,y,z) each one.
-                vector = setTransformationVector(coordinates[j], coordinates[j + 1], coordinates[j + 2], rotationMatrix, scaleFactorX, scaleFactorY, scaleFactorZ, adjustZ, center);
-                bb.putFloat(vector[0]);
-                bb.putFloat(vector[1]);
-                bb.putFloat(vector[2]);
-
-                vector = setTransformationVector(coordinates[j + 3], coordinates[j + 4], coordinates[j + 5], rotationMatrix, scaleFactorX, scaleFactorY, scaleFactorZ, adjustZ, center);
-                bb.putFloat(vector[0]);
-                bb.putFloat(vector[1]);
-                bb.putFloat(vector[2]);
-
-                vector = setTransformationVector(coordinates[j + 6], coordinates[j + 7], coordinates[j + 8], rotationMatrix, scaleFactorX, scaleFactorY, scaleFactorZ, adjustZ, center);
-                bb.putFloat(vector[0]);
-                bb.putFloat(vector[1]);
-                bb.putFloat(vector[2]);
-
-                bb.putShort((short) 0); // end of triangle
-            }
-        }
+            //Corners of a batch of triangles, transformed together
+            float[] corners = new float[WRITE_BATCH_TRIANGLES * COORDS_PER_TRIANGLE];
 
-        bb.position(0);
-        byte[] data = bb.array();
+            for (int i = 0; i < dataList.size(); i++) {
+                DataStorage data = dataList.get(i);
+                float[] coordinates = data.getVertexArray();
+                int[] indices = data.getIndexArray();
+                int triangles = data.getTriangleCount();
 
-        Log.i("Slicer", "Saved");
+                TransformKernel kernel = TransformKernel.forModel(data);
+
+                for (int first = 0; first < triangles; first += WRITE_BATCH_TRIANGLES) {
+                    int count = Math.min(WRITE_BATCH_TRIANGLES, triangles - first);
+
+                    if (indices != null) {
+                        for (int c = 0; c < count * 3; c++)
+                            System.arraycopy(coordinates, indices[first * 3 + c] * 3, corners, c * 3, 3);
+                        kernel.transform(corners, 0, count * 3, corners, 0);
+                    } else {
+                        kernel.transform(coordinates, first * 3, (first + count) * 3, corners, 0);
+                    }
+
+                    for (int t = 0; t < count; t++) {
+                        if (bb.remaining() < BINARY_TRIANGLE_SIZE) writeBuffer(channel, bb);
+
+                        //Normal data. It is not necessary to store the info
+                        bb.putFloat(0);
+                        bb.putFloat(0);
+                        bb.putFloat(0);
+
+                        //Triangle Data, 3 vertex with 3 coordinates (x,y,z) each one.
+                        for (int j = t * COORDS_PER_TRIANGLE; j < (t + 1) * COORDS_PER_TRIANGLE; j++)
+                            bb.putFloat(corners[j]);
+
+                        bb.putShort((short) 0); // end of triangle
+                    }
+                }
+            }
 
-        if (slicer != null) {
+            writeBuffer(channel, bb);
 
-            slicer.setData(data);
-            //slicer.sendTimer();
+            //The file is sent right after, make sure it's on disk
+            channel.force(true);
 
-        } else {
-            String path = LibraryController.getParentFolder().getAbsolutePath() + "/" + projectName + ".stl";
-            try {
-                FileOutputStream fos = new FileOutputStream(path);
-                fos.write(data);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (fos != null) try {
                 fos.close();
-            } catch (Exception e) {
+            } catch (IOException e) {
                 e.printStackTrace();
             }
-
-            File file = new File(path);
-            LibraryModelCreation.createFolderStructure(mContext, file);
-            file.delete();
         }
 
+        Log.i("Slicer", "Saved");
 
         return true;
     }
 
+    private static void writeBuffer(FileChannel channel, ByteBuffer bb) throws IOException {
+        bb.flip();
+        while (bb.hasRemaining()) channel.write(bb);
+        bb.clear();
+    }
+
     /**
      * **********************************************************************************
      */
 
     /*
-    Check file size or issue a notification
+    Check file size or issue a notification.
+    The file itself is mapped, so only the vertex and normal arrays (9 floats each per triangle) have to fit in the heap.
+    Counting a triangle per 50 bytes is exact for binary files and on the safe side for text ones.
      */
     public static boolean checkFileSize(File file, Context context) {
 
-        if (file.length() < MAX_SIZE) return true;
+        long triangles = file.length() / BINARY_TRIANGLE_SIZE;
+        long required = triangles * COORDS_PER_TRIANGLE * 2 * 4;
+
+        if (required < Runtime.getRuntime().maxMemory() / 2) return true;
         else return false;
 
     }
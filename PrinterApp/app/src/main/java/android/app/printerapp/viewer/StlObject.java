@@ -3,13 +3,9 @@ package android.app.printerapp.viewer;
 import android.content.Context;
 import android.opengl.GLES20;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
-
 public class StlObject {
 	
-	private final String vertexShaderCode =
+	private static final String vertexShaderCode =
 				"uniform mat4 u_MVPMatrix;      \n"		// A constant representing the combined model/view/projection matrix.
 			  + "uniform mat4 u_MVMatrix;       \n"		// A constant representing the combined model/view matrix.	
 			  + "uniform vec3 u_LightPos;       \n"	    // The position of the light in eye space.
@@ -42,7 +38,7 @@ public class StlObject {
 			  + "   gl_Position = u_MVPMatrix * a_Position;                            			\n"     
 			  + "}                                                                     			\n"; 
 	
-	private final String vertexOverhangShaderCode =
+	private static final String vertexOverhangShaderCode =
 			"uniform mat4 u_MVPMatrix;      \n"		// A constant representing the combined model/view/projection matrix.
 		  + "uniform mat4 u_MVMatrix;       \n"		// A constant representing the combined model/view matrix.	
 		  + "uniform mat4 u_MMatrix;       \n"		// A constant representing the model	
@@ -86,7 +82,7 @@ public class StlObject {
 		  + "}                                                                     			\n"; 
 
    
-	private final String fragmentShaderCode =
+	private static final String fragmentShaderCode =
 			"precision mediump float;       \n"		// Set the default precision to medium. We don't need as high of a precision in the fragment shader.				
 		  + "varying vec4 v_Color;          \n"		// This is the color from the vertex shader interpolated across the triangle per fragment.			  
 		  + "void main()                    \n"		// The entry point for our fragment shader.
@@ -96,8 +92,8 @@ public class StlObject {
 		  + ""
 		  + "            					\n";
 
-	private final int mProgram;
-	private final int mProgramOverhang;
+	private final ShaderProgramRegistry.Program mProgram;
+	private final ShaderProgramRegistry.Program mProgramOverhang;
 
 	private int mPositionHandle;
 	private int mColorHandle;
@@ -123,27 +119,53 @@ public class StlObject {
 	public static float colorObjectOutTouched[] = {1.0f, 1.0f, 1.0f, 1.0f};
 	
 	private final DataStorage mData;
+	private final BufferObjectManager mBuffers;
+	//Copies of a model draw from the same buffers, unless the arrays had to be expanded for this object, then it owns them
+	private Object mBufferOwner;
 	
 	float [] mVertexArray;
 	float [] mNormalArray;
-	private final FloatBuffer mNormalBuffer;
-	private final FloatBuffer mTriangleBuffer;
+	//Null if there is one vertex per triangle corner
+	private int [] mIndexArray;
+	private int mIndexType;
+	private final boolean mIntIndices;
 
 	private final int vertexCount;
 	
+	//Draw the reduced mesh if there is one, while the scene is moving
+	private boolean mUseLod;
+	
 	private boolean mTransparent ;
 	private boolean mXray;
 	private boolean mOverhang;
 	
 	private float mOverhangAngle= 45;
 
-	public StlObject(DataStorage data, Context context, int state) {	
+	public StlObject(DataStorage data, Context context, int state, BufferObjectManager buffers, ShaderProgramRegistry programs) {	
 		this.mData = data;
+		this.mBuffers = buffers;
 				
 		mVertexArray = mData.getVertexArray();
 		mNormalArray = mData.getNormalArray();
+		mIndexArray = mData.getIndexArray();
+		mIntIndices = BufferObjectManager.supportsIntIndices();
+		mBufferOwner = mData.getGeometry();
+
+		if (mIndexArray != null) {
+			if (mIntIndices) {
+				mIndexType = GLES20.GL_UNSIGNED_INT;
+			} else if (mVertexArray.length/COORDS_PER_VERTEX <= 65536) {
+				mIndexType = GLES20.GL_UNSIGNED_SHORT;
+			} else {
+				//Too many vertices for short indices, back to a vertex per corner
+				mVertexArray = IndexedMesh.expand(mVertexArray, mIndexArray);
+				mNormalArray = IndexedMesh.expand(mNormalArray, mIndexArray);
+				mIndexArray = null;
+				mBufferOwner = this;
+			}
+		}
 
-		vertexCount = mVertexArray.length/COORDS_PER_VERTEX;
+		vertexCount = (mIndexArray != null) ? mIndexArray.length : mVertexArray.length/COORDS_PER_VERTEX;
 			
 		configStlObject(state);
 
@@ -160,51 +182,9 @@ public class StlObject {
 		else setColor (colorNormal);
 
 		
-		//Vertex buffer
-		ByteBuffer vbb = ByteBuffer.allocateDirect(mVertexArray.length * 4);
-		vbb.order(ByteOrder.nativeOrder());
-		mTriangleBuffer = vbb.asFloatBuffer();
-		mTriangleBuffer.put(mVertexArray);
-		mTriangleBuffer.position(0);
-		
-		//Normal buffer
-		ByteBuffer nbb = ByteBuffer.allocateDirect(mNormalArray.length * 4);
-		nbb.order(ByteOrder.nativeOrder());
-		mNormalBuffer = nbb.asFloatBuffer();
-		mNormalBuffer.put(mNormalArray);
-		mNormalBuffer.position(0);
-				
-		// prepare shaders and OpenGL program
-		int vertexOverhangShader = ViewerRenderer.loadShader(
-	        GLES20.GL_VERTEX_SHADER,
-	        vertexOverhangShaderCode);
-	
-		int vertexShader = ViewerRenderer.loadShader(
-            GLES20.GL_VERTEX_SHADER,
-            vertexShaderCode);
-		
-        	
-        int fragmentShader = ViewerRenderer.loadShader(
-                GLES20.GL_FRAGMENT_SHADER,
-                fragmentShaderCode);
-
-        mProgram = GLES20.glCreateProgram();             // create empty OpenGL Program
-        mProgramOverhang = GLES20.glCreateProgram();
-        
-        GLES20.glAttachShader(mProgram, vertexShader);   // add the vertex shader to program
-        GLES20.glAttachShader(mProgram, fragmentShader); // add the fragment shader to program
-
-        GLES20.glAttachShader(mProgramOverhang, vertexOverhangShader);   // add the vertex overhang shader to program
-        GLES20.glAttachShader(mProgramOverhang, fragmentShader); // add the fragment shader to program
-        
-        GLES20.glBindAttribLocation(mProgram, 0, "a_Position");
-        GLES20.glBindAttribLocation(mProgram, 1, "a_Normal");
-        
-        GLES20.glBindAttribLocation(mProgramOverhang, 0, "a_Position");
-        GLES20.glBindAttribLocation(mProgramOverhang, 1, "a_Normal");
-
-        GLES20.glLinkProgram(mProgram);                  // create OpenGL program executables      
-        GLES20.glLinkProgram(mProgramOverhang);          // create OpenGL program executables        
+		// Shaders are compiled once for all the objects
+		mProgram = programs.getProgram(vertexShaderCode, fragmentShaderCode, "a_Position", "a_Normal");
+		mProgramOverhang = programs.getProgram(vertexOverhangShaderCode, fragmentShaderCode, "a_Position", "a_Normal");
 	}
 	
 	public void configStlObject (int state) {
@@ -233,6 +213,10 @@ public class StlObject {
 		mOverhang = overhang;
 	}
 	
+	public void setUseLod (boolean lod) {
+		mUseLod = lod;
+	}
+	
 	public void setColor (float[] c) {
 		mColor = c;
 	}
@@ -244,14 +228,18 @@ public class StlObject {
 	 */
 	
 	public void draw(float[] mvpMatrix, float[] mvMatrix, float [] lightVector, float [] mMatrix) {
-		int program = mProgram;
-		if (mOverhang){
-			program = mProgramOverhang;
-			GLES20.glUseProgram(mProgramOverhang);
-		} else { 
-			program = mProgram;
-			GLES20.glUseProgram(mProgram);
-		}
+		IndexedMesh lod = mUseLod ? mData.getLodMesh() : null;
+		if (lod != null && !mIntIndices && lod.getVertexArray().length/COORDS_PER_VERTEX > 65536) lod = null;
+		
+		float [] vertexArray = (lod != null) ? lod.getVertexArray() : mVertexArray;
+		float [] normalArray = (lod != null) ? lod.getNormalArray() : mNormalArray;
+		int [] indexArray = (lod != null) ? lod.getIndexArray() : mIndexArray;
+		int indexType = (lod != null) ? (mIntIndices ? GLES20.GL_UNSIGNED_INT : GLES20.GL_UNSIGNED_SHORT) : mIndexType;
+		int indexSize = (indexType == GLES20.GL_UNSIGNED_INT) ? 4 : 2;
+		int count = (lod != null) ? indexArray.length : vertexCount;
+		
+		ShaderProgramRegistry.Program program = mOverhang ? mProgramOverhang : mProgram;
+		program.use();
 
 	    if (mTransparent)
 			GLES20.glBlendFunc(GLES20.GL_ONE, GLES20.GL_ONE_MINUS_SRC_ALPHA);
@@ -259,31 +247,32 @@ public class StlObject {
 	    	GLES20.glBlendFunc(GLES20.GL_SRC_COLOR, GLES20.GL_CONSTANT_COLOR);  
 	    
 	    // get handle to vertex shader's vPosition member
-	    mPositionHandle = GLES20.glGetAttribLocation(program, "a_Position");
-        ViewerRenderer.checkGlError("glGetAttribLocation");
+	    mPositionHandle = program.aPosition;
 
-	    // Prepare the triangle coordinate data
+	    // Prepare the triangle coordinate data, uploaded to the GPU only the first time
+	    if (mBuffers.bindArray(mBufferOwner, (lod != null) ? BufferObjectManager.LOD_VERTEX : BufferObjectManager.VERTEX, vertexArray) == 0) {
+	    	//No GPU memory for it, nothing to draw from
+	    	BufferObjectManager.unbind();
+	    	return;
+	    }
 	    GLES20.glVertexAttribPointer(mPositionHandle, COORDS_PER_VERTEX,
 	                                 GLES20.GL_FLOAT, false,
-	                                 VERTEX_STRIDE, mTriangleBuffer); 
+	                                 VERTEX_STRIDE, 0); 
 	    
 	    // Enable a handle to the facet vertices
 	    GLES20.glEnableVertexAttribArray(mPositionHandle);
 	    
 	    if (mOverhang) {
-	        mColorOverhangHandle = GLES20.glGetUniformLocation(program, "a_ColorOverhang");
-	        ViewerRenderer.checkGlError("glGetUniformLocation COLOROVERHANG");
+	        mColorOverhangHandle = program.uColorOverhang;
 	        
 	        GLES20.glUniform4fv(mColorOverhangHandle, 1, colorOverhang, 0);
 	        ViewerRenderer.checkGlError("glUniform4fv");
 	        
-	        mCosAngleHandle = GLES20.glGetUniformLocation(program, "a_CosAngle");
-	        ViewerRenderer.checkGlError("glGetUniformLocation");
+	        mCosAngleHandle = program.uCosAngle;
 	        
 	        GLES20.glUniform1f(mCosAngleHandle, (float) Math.cos(Math.toRadians(mOverhangAngle))); 
 	        
-	        mMMatrixHandle = GLES20.glGetUniformLocation(program, "u_MMatrix"); 
-	        ViewerRenderer.checkGlError("glGetUniformLocation");
+	        mMMatrixHandle = program.uMMatrix;
 
 	        // Pass in the modelview matrix.
 	        GLES20.glUniformMatrix4fv(mMMatrixHandle, 1, false, mMatrix, 0); 
@@ -291,50 +280,66 @@ public class StlObject {
         } 
 
 	    // get handle to fragment shader's vColor member
-	    mColorHandle = GLES20.glGetUniformLocation(program, "a_Color");
-        ViewerRenderer.checkGlError("glGetUniformLocation a_Color");
+	    mColorHandle = program.uColor;
 
 	    // Set color for drawing the facet 
 	    GLES20.glUniform4fv(mColorHandle, 1, mColor, 0);
         ViewerRenderer.checkGlError("glUniform4fv");
 
-        mNormalHandle = GLES20.glGetAttribLocation(program, "a_Normal");
-        ViewerRenderer.checkGlError("glGetAttribLocation");
+        mNormalHandle = program.aNormal;
 
         // Pass in the normal information
+        if (mBuffers.bindArray(mBufferOwner, (lod != null) ? BufferObjectManager.LOD_NORMAL : BufferObjectManager.NORMAL, normalArray) == 0) {
+        	BufferObjectManager.unbind();
+        	return;
+        }
         GLES20.glVertexAttribPointer(mNormalHandle, COORDS_PER_VERTEX, 
         							 GLES20.GL_FLOAT, false, 
-        							 VERTEX_STRIDE, mNormalBuffer);
+        							 VERTEX_STRIDE, 0);
         
         GLES20.glEnableVertexAttribArray(mNormalHandle);
 
 	    // get handle to shape's transformation matrix
-        mMVPMatrixHandle = GLES20.glGetUniformLocation(program, "u_MVPMatrix");
-        ViewerRenderer.checkGlError("glGetUniformLocation");
+        mMVPMatrixHandle = program.uMVPMatrix;
 
         // Apply the projection and view transformation
         GLES20.glUniformMatrix4fv(mMVPMatrixHandle, 1, false, mvpMatrix, 0);
         ViewerRenderer.checkGlError("glUniformMatrix4fv");
         
-        mMVMatrixHandle = GLES20.glGetUniformLocation(program, "u_MVMatrix"); 
-        ViewerRenderer.checkGlError("glGetUniformLocation");
+        mMVMatrixHandle = program.uMVMatrix;
 
         // Pass in the modelview matrix.
         GLES20.glUniformMatrix4fv(mMVMatrixHandle, 1, false, mvMatrix, 0); 
         ViewerRenderer.checkGlError("glUniformMatrix4fv");
            
-        mLightPosHandle = GLES20.glGetUniformLocation(program, "u_LightPos");
-        ViewerRenderer.checkGlError("glGetUniformLocation");
+        mLightPosHandle = program.uLightPos;
         
         GLES20.glUniform3f(mLightPosHandle, lightVector[0], lightVector[1], lightVector[2]);
         ViewerRenderer.checkGlError("glUniform3f");
         
+        if (indexArray != null) {
+        	int slot = (lod != null) ? BufferObjectManager.LOD_INDEX : BufferObjectManager.INDEX;
+        	int id;
+        	if (indexType == GLES20.GL_UNSIGNED_INT) id = mBuffers.bindElements(mBufferOwner, slot, indexArray);
+        	else id = mBuffers.bindShortElements(mBufferOwner, slot, indexArray);
+
+        	if (id == 0) {
+        		BufferObjectManager.unbind();
+        		return;
+        	}
+        }
+        
         if (mXray) {       
-	        for (int i=0; i<vertexCount/COORDS_PER_VERTEX; i++) {
-	        	GLES20.glDrawArrays(GLES20.GL_LINE_LOOP, i*3, 3);
+	        for (int i=0; i<count/COORDS_PER_VERTEX; i++) {
+	        	if (indexArray != null) GLES20.glDrawElements(GLES20.GL_LINE_LOOP, 3, indexType, i*3*indexSize);
+	        	else GLES20.glDrawArrays(GLES20.GL_LINE_LOOP, i*3, 3);
 	        }
+        } else if (indexArray != null) {
+        	GLES20.glDrawElements(GLES20.GL_TRIANGLES, count, indexType, 0);
         } else     
-        	GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, vertexCount);
+        	GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, count);
+        
+        BufferObjectManager.unbind();
 	}
 }
 
@@ -0,0 +1,105 @@
+package android.app.printerapp.viewer;
+
+import android.app.printerapp.viewer.Geometry.Point;
+
+/**
+ * Rotation, scale and translation of a model composed into a single 3x4 matrix, applied to whole
+ * vertex arrays in a tight loop instead of one Matrix.multiplyMV call per vertex.
+ * Plain Java, it doesn't need a GL context. See TransformKernelBenchmark in the androidTest sources.
+ */
+public class TransformKernel {
+
+	//3 rows of 4, the last column is the translation
+	private final float[] mMatrix = new float[12];
+
+	/**
+	 * Only the rotation of a 4x4 OpenGL matrix, vertices are multiplied with w = 0
+	 */
+	public TransformKernel(float[] rotationMatrix) {
+		this(rotationMatrix, 1, 1, 1, 0, 0, 0);
+	}
+
+	/**
+	 * The rotation of a 4x4 OpenGL matrix, then a scale per axis and a translation
+	 */
+	public TransformKernel(float[] rotationMatrix, float scaleX, float scaleY, float scaleZ, float x, float y, float z) {
+		float[] scale = { scaleX, scaleY, scaleZ };
+
+		for (int row = 0; row < 3; row++) {
+			for (int col = 0; col < 3; col++) mMatrix[row * 4 + col] = rotationMatrix[col * 4 + row] * scale[row];
+		}
+
+		mMatrix[3] = x;
+		mMatrix[7] = y;
+		mMatrix[11] = z;
+	}
+
+	/**
+	 * Where the model is placed in the plate, as written to the STL file for slicing
+	 */
+	public static TransformKernel forModel(DataStorage data) {
+		Point center = data.getLastCenter();
+
+		return new TransformKernel(data.getRotationMatrix(),
+				data.getLastScaleFactorX(), data.getLastScaleFactorY(), data.getLastScaleFactorZ(),
+				center.x, center.y, center.z + data.getAdjustZ());
+	}
+
+	/**
+	 * Transform the vertices [from, to) of src into dst starting at vertex dstFrom. src and dst can be the same array.
+	 */
+	public void transform(float[] src, int from, int to, float[] dst, int dstFrom) {
+		final float m0 = mMatrix[0], m1 = mMatrix[1], m2 = mMatrix[2], m3 = mMatrix[3];
+		final float m4 = mMatrix[4], m5 = mMatrix[5], m6 = mMatrix[6], m7 = mMatrix[7];
+		final float m8 = mMatrix[8], m9 = mMatrix[9], m10 = mMatrix[10], m11 = mMatrix[11];
+
+		int d = dstFrom * 3;
+		for (int i = from * 3; i < to * 3; i += 3) {
+			float x = src[i];
+			float y = src[i + 1];
+			float z = src[i + 2];
+
+			dst[d++] = m0 * x + m1 * y + m2 * z + m3;
+			dst[d++] = m4 * x + m5 * y + m6 * z + m7;
+			dst[d++] = m8 * x + m9 * y + m10 * z + m11;
+		}
+	}
+
+	/**
+	 * Bounding box of the transformed vertices, without storing them
+	 *
+	 * @param bounds minX, minY, minZ, maxX, maxY, maxZ
+	 */
+	public void getBounds(float[] src, float[] bounds) {
+		final float m0 = mMatrix[0], m1 = mMatrix[1], m2 = mMatrix[2], m3 = mMatrix[3];
+		final float m4 = mMatrix[4], m5 = mMatrix[5], m6 = mMatrix[6], m7 = mMatrix[7];
+		final float m8 = mMatrix[8], m9 = mMatrix[9], m10 = mMatrix[10], m11 = mMatrix[11];
+
+		float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
+		float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE, maxZ = -Float.MAX_VALUE;
+
+		for (int i = 0; i + 2 < src.length; i += 3) {
+			float x = src[i];
+			float y = src[i + 1];
+			float z = src[i + 2];
+
+			float tx = m0 * x + m1 * y + m2 * z + m3;
+			float ty = m4 * x + m5 * y + m6 * z + m7;
+			float tz = m8 * x + m9 * y + m10 * z + m11;
+
+			if (tx < minX) minX = tx;
+			if (tx > maxX) maxX = tx;
+			if (ty < minY) minY = ty;
+			if (ty > maxY) maxY = ty;
+			if (tz < minZ) minZ = tz;
+			if (tz > maxZ) maxZ = tz;
+		}
+
+		bounds[0] = minX;
+		bounds[1] = minY;
+		bounds[2] = minZ;
+		bounds[3] = maxX;
+		bounds[4] = maxY;
+		bounds[5] = maxZ;
+	}
+}
@@ -0,0 +1,248 @@
+package android.app.printerapp.viewer;
+
+/**
+ * Bounding volume hierarchy over the triangles of an STL, for exact ray picking in logarithmic time.
+ *
+ * Nodes are split at the median of the triangle centroids along their longest side, down to LEAF_SIZE triangles.
+ * Everything is kept in flat arrays: the bounds of node n are bounds[n*6 .. n*6+5] (min xyz, max xyz), inner nodes
+ * have their children at first[n] and first[n]+1, leaves have count[n] triangles starting at first[n] in the
+ * triangle order array.
+ *
+ * Works in model coordinates, rays must be transformed by the inverse model matrix first.
+ * Plain Java, it doesn't need a GL context.
+ */
+public class TriangleBvh {
+
+	private static final int LEAF_SIZE = 16;
+	private static final int MAX_DEPTH = 64;
+
+	private final float[] mVertices;
+	private final int[] mIndices;
+
+	private final int[] mTriangles;
+	private float[] mBounds;
+	private int[] mFirst;
+	private int[] mCount;
+	private int mNodes = 0;
+
+	/**
+	 * @param vertices 3 coordinates per vertex
+	 * @param indices 3 indices per triangle, or null if every 3 vertices are a triangle
+	 */
+	public TriangleBvh(float[] vertices, int[] indices) {
+		mVertices = vertices;
+		mIndices = indices;
+
+		int triangles = (indices != null ? indices.length : vertices.length / 3) / 3;
+		mTriangles = new int[triangles];
+		for (int i = 0; i < triangles; i++) mTriangles[i] = i;
+
+		//Median splits leave at least LEAF_SIZE/2 triangles per leaf, it grows if the depth limit is reached
+		int maxNodes = Math.max(1, 4 * ((triangles + LEAF_SIZE - 1) / LEAF_SIZE));
+		mBounds = new float[maxNodes * 6];
+		mFirst = new int[maxNodes];
+		mCount = new int[maxNodes];
+
+		int root = mNodes++;
+		build(root, 0, triangles, 0);
+	}
+
+	/**
+	 * Distance along the ray to the closest triangle, in units of the ray vector, or -1 if it hits nothing.
+	 * Triangles are hit from both sides.
+	 */
+	public float intersect(float ox, float oy, float oz, float dx, float dy, float dz) {
+		float best = Float.MAX_VALUE;
+
+		float ix = 1f / dx, iy = 1f / dy, iz = 1f / dz;
+
+		int[] stack = new int[MAX_DEPTH * 2];
+		int top = 0;
+		stack[top++] = 0;
+
+		while (top > 0) {
+			int node = stack[--top];
+			if (!hitsBox(node, ox, oy, oz, ix, iy, iz, best)) continue;
+
+			if (mCount[node] > 0) {
+				for (int i = mFirst[node]; i < mFirst[node] + mCount[node]; i++) {
+					float t = intersectTriangle(mTriangles[i], ox, oy, oz, dx, dy, dz);
+					if (t >= 0 && t < best) best = t;
+				}
+			} else {
+				stack[top++] = mFirst[node];
+				stack[top++] = mFirst[node] + 1;
+			}
+		}
+
+		return (best < Float.MAX_VALUE) ? best : -1;
+	}
+
+	/**
+	 * Approximate heap used by the hierarchy, in bytes. The vertices belong to the model.
+	 */
+	public long getMemorySize() {
+		return (mTriangles.length + mFirst.length + mCount.length + mBounds.length) * 4L;
+	}
+
+	private void build(int node, int from, int to, int depth) {
+		float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
+		float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE, maxZ = -Float.MAX_VALUE;
+
+		for (int i = from; i < to; i++) {
+			for (int k = 0; k < 3; k++) {
+				int v = vertex(mTriangles[i], k) * 3;
+				minX = Math.min(minX, mVertices[v]);
+				maxX = Math.max(maxX, mVertices[v]);
+				minY = Math.min(minY, mVertices[v + 1]);
+				maxY = Math.max(maxY, mVertices[v + 1]);
+				minZ = Math.min(minZ, mVertices[v + 2]);
+				maxZ = Math.max(maxZ, mVertices[v + 2]);
+			}
+		}
+
+		int b = node * 6;
+		mBounds[b] = minX;
+		mBounds[b + 1] = minY;
+		mBounds[b + 2] = minZ;
+		mBounds[b + 3] = maxX;
+		mBounds[b + 4] = maxY;
+		mBounds[b + 5] = maxZ;
+
+		if (to - from <= LEAF_SIZE || depth >= MAX_DEPTH - 1) {
+			mFirst[node] = from;
+			mCount[node] = to - from;
+			return;
+		}
+
+		//Longest side
+		int axis = 0;
+		if (maxY - minY > maxX - minX) axis = 1;
+		if (maxZ - minZ > Math.max(maxX - minX, maxY - minY)) axis = 2;
+
+		int middle = (from + to) >>> 1;
+		select(from, to - 1, middle, axis);
+
+		int left = mNodes;
+		mNodes += 2;
+		ensureCapacity(mNodes);
+
+		mFirst[node] = left;
+		mCount[node] = 0;
+
+		build(left, from, middle, depth + 1);
+		build(left + 1, middle, to, depth + 1);
+	}
+
+	/**
+	 * Reorder the triangles in [from, to] so the one at k has its centroid in place along the axis
+	 */
+	private void select(int from, int to, int k, int axis) {
+		while (to > from) {
+			float pivot = centroid(mTriangles[(from + to) >>> 1], axis);
+			int i = from;
+			int j = to;
+
+			while (i <= j) {
+				while (centroid(mTriangles[i], axis) < pivot) i++;
+				while (centroid(mTriangles[j], axis) > pivot) j--;
+				if (i <= j) {
+					int aux = mTriangles[i];
+					mTriangles[i] = mTriangles[j];
+					mTriangles[j] = aux;
+					i++;
+					j--;
+				}
+			}
+
+			if (k <= j) to = j;
+			else if (k >= i) from = i;
+			else return;
+		}
+	}
+
+	//Three times the centroid, only compared
+	private float centroid(int triangle, int axis) {
+		return mVertices[vertex(triangle, 0) * 3 + axis] + mVertices[vertex(triangle, 1) * 3 + axis]
+				+ mVertices[vertex(triangle, 2) * 3 + axis];
+	}
+
+	private int vertex(int triangle, int corner) {
+		return (mIndices != null) ? mIndices[triangle * 3 + corner] : triangle * 3 + corner;
+	}
+
+	private void ensureCapacity(int nodes) {
+		if (nodes <= mFirst.length) return;
+
+		int size = Math.max(nodes, mFirst.length * 2);
+		float[] bounds = new float[size * 6];
+		int[] first = new int[size];
+		int[] count = new int[size];
+		System.arraycopy(mBounds, 0, bounds, 0, mBounds.length);
+		System.arraycopy(mFirst, 0, first, 0, mFirst.length);
+		System.arraycopy(mCount, 0, count, 0, mCount.length);
+		mBounds = bounds;
+		mFirst = first;
+		mCount = count;
+	}
+
+	//Slab test, only boxes starting before the closest hit so far
+	private boolean hitsBox(int node, float ox, float oy, float oz, float ix, float iy, float iz, float best) {
+		int b = node * 6;
+
+		float t1 = (mBounds[b] - ox) * ix;
+		float t2 = (mBounds[b + 3] - ox) * ix;
+		float tMin = Math.min(t1, t2);
+		float tMax = Math.max(t1, t2);
+
+		t1 = (mBounds[b + 1] - oy) * iy;
+		t2 = (mBounds[b + 4] - oy) * iy;
+		tMin = Math.max(tMin, Math.min(t1, t2));
+		tMax = Math.min(tMax, Math.max(t1, t2));
+
+		t1 = (mBounds[b + 2] - oz) * iz;
+		t2 = (mBounds[b + 5] - oz) * iz;
+		tMin = Math.max(tMin, Math.min(t1, t2));
+		tMax = Math.min(tMax, Math.max(t1, t2));
+
+		//NaN from a zero direction inside the slab is not a miss
+		return !(tMax < tMin) && !(tMax < 0) && !(tMin > best);
+	}
+
+	//Moller-Trumbore
+	private float intersectTriangle(int triangle, float ox, float oy, float oz, float dx, float dy, float dz) {
+		int a = vertex(triangle, 0) * 3;
+		int b = vertex(triangle, 1) * 3;
+		int c = vertex(triangle, 2) * 3;
+
+		float e1x = mVertices[b] - mVertices[a];
+		float e1y = mVertices[b + 1] - mVertices[a + 1];
+		float e1z = mVertices[b + 2] - mVertices[a + 2];
+		float e2x = mVertices[c] - mVertices[a];
+		float e2y = mVertices[c + 1] - mVertices[a + 1];
+		float e2z = mVertices[c + 2] - mVertices[a + 2];
+
+		float px = dy * e2z - dz * e2y;
+		float py = dz * e2x - dx * e2z;
+		float pz = dx * e2y - dy * e2x;
+		float det = e1x * px + e1y * py + e1z * pz;
+		if (det == 0) return -1;
+
+		float inv = 1f / det;
+		float tx = ox - mVertices[a];
+		float ty = oy - mVertices[a + 1];
+		float tz = oz - mVertices[a + 2];
+
+		float u = (tx * px + ty * py + tz * pz) * inv;
+		if (u < 0 || u > 1) return -1;
+
+		float qx = ty * e1z - tz * e1y;
+		float qy = tz * e1x - tx * e1z;
+		float qz = tx * e1y - ty * e1x;
+
+		float v = (dx * qx + dy * qy + dz * qz) * inv;
+		if (v < 0 || u + v > 1) return -1;
+
+		return (e2x * qx + e2y * qy + e2z * qz) * inv;
+	}
+}
@@ -814,7 +814,9 @@ public class ViewerMainFragment extends Fragment {
                     mDataList.remove(mDataList.size() - 2);
                 }
             }
-            Geometry.relocateIfOverlaps(mDataList);
+            if (!Geometry.relocateIfOverlaps(mDataList)) {
+                showArrangeDialog(mContext.getString(R.string.viewer_arrange_model), new ArrayList<DataStorage>());
+            }
             mSeekBar.setVisibility(View.INVISIBLE);
 
         } else if (LibraryController.hasExtension(1, filePath)) {
@@ -891,7 +893,7 @@ public class ViewerMainFragment extends Fragment {
                                         if (StlFile.checkIfNameExists(proyectNameText.getText().toString()))
                                             proyectNameText.setError(mContext.getString(R.string.proyect_name_not_available));
                                         else {
-                                            if (StlFile.saveModel(mDataList, proyectNameText.getText().toString(), null))
+                                            if (StlFile.saveModel(mDataList, proyectNameText.getText().toString()))
                                                 dialog.dismiss();
                                             else {
                                                 Toast.makeText(mContext, R.string.error_saving_invalid_model, Toast.LENGTH_SHORT).show();
@@ -1352,6 +1354,7 @@ public class ViewerMainFragment extends Fragment {
 
     private static void drawCopies(int numCopies) {
         int model = mSurface.getObjectPresed();
+        int first = mDataList.size();
         int num = 0;
 
         while (num < numCopies) {
@@ -1359,21 +1362,54 @@ public class ViewerMainFragment extends Fragment {
             newData.copyData(mDataList.get(model));
             mDataList.add(newData);
 
-            /**
-             * Check if the piece is out of the plate and stop multiplying
-             */
-            if (!Geometry.relocateIfOverlaps(mDataList)) {
+            num++;
+        }
 
-                Toast.makeText(mContext, R.string.viewer_multiply_error, Toast.LENGTH_LONG).show();
-                mDataList.remove(newData);
-                break;
+        //Fit the copies in the free space, stop multiplying at the first copy that doesn't fit
+        int placed = PlateArranger.place(mDataList, first, mCurrentPlate, true);
 
-            }
+        if (placed < numCopies) {
+
+            List<DataStorage> left = new ArrayList<DataStorage>(mDataList.subList(first + placed, mDataList.size()));
+            mDataList.subList(first + placed, mDataList.size()).clear();
+
+            showArrangeDialog(mContext.getString(R.string.viewer_arrange_copies, placed, numCopies), left);
 
-            num++;
         }
 
-        draw();
+        if (placed > 0) draw();
+    }
+
+    /**
+     * Offer to pack the whole plate again when new models don't fit in its free space.
+     * The models left out are added before arranging and dropped again if they still don't fit.
+     */
+    private static void showArrangeDialog(String content, final List<DataStorage> left) {
+
+        new MaterialDialog.Builder(mContext)
+                .title(R.string.viewer_arrange_title)
+                .content(content)
+                .positiveColorRes(R.color.theme_accent_1)
+                .positiveText(R.string.viewer_arrange_plate)
+                .negativeColorRes(R.color.body_text_2)
+                .negativeText(R.string.cancel)
+                .callback(new MaterialDialog.ButtonCallback() {
+                    @Override
+                    public void onPositive(MaterialDialog dialog) {
+                        int size = mDataList.size();
+                        mDataList.addAll(left);
+
+                        if (!PlateArranger.arrange(mDataList, mCurrentPlate, true)) {
+
+                            Toast.makeText(mContext, R.string.viewer_arrange_error, Toast.LENGTH_LONG).show();
+                            while (mDataList.size() > size) mDataList.remove(mDataList.size() - 1);
+
+                        }
+
+                        slicingCallback();
+                    }
+                })
+                .show();
     }
 
 /**
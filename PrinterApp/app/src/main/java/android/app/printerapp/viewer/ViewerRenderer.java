@@ -2,7 +2,6 @@ package android.app.printerapp.viewer;
 
 import android.app.printerapp.Log;
 import android.app.printerapp.library.LibraryModelCreation;
-import android.app.printerapp.viewer.Geometry.Box;
 import android.app.printerapp.viewer.Geometry.Point;
 import android.app.printerapp.viewer.Geometry.Ray;
 import android.app.printerapp.viewer.Geometry.Vector;
@@ -89,6 +88,12 @@ public class ViewerRenderer implements GLSurfaceView.Renderer  {
     private WitboxFaces mWitboxFaceTop;
 	private WitboxPlate mInfinitePlane;
 	private List<DataStorage> mDataList;
+	//The user is touching the scene, big models are drawn with their reduced mesh
+	private boolean mInteracting = false;
+
+	//GPU buffers and shader programs of the models, they belong to the current GL context
+	private final BufferObjectManager mBuffers = new BufferObjectManager();
+	private final ShaderProgramRegistry mPrograms = new ShaderProgramRegistry();
 
 			
 	private boolean mShowLeftWitboxFace = true;
@@ -148,6 +153,9 @@ public class ViewerRenderer implements GLSurfaceView.Renderer  {
     private Circles mCircle;
     private int[] mPlate;
 
+    //Footprints of the models, for the overlap checks
+    private FootprintGrid mFootprints;
+
     private int mAxis = -1;
 			
 	public ViewerRenderer (List<DataStorage> dataList, Context context, int state, int mode) {	
@@ -157,6 +165,7 @@ public class ViewerRenderer implements GLSurfaceView.Renderer  {
 		
 		this.mMode = mode;
         this.mPlate = ViewerMainFragment.getCurrentPlate();
+        this.mFootprints = new FootprintGrid(mPlate);
 	}
 	
 	public void showBackWitboxFace (boolean draw) {
@@ -206,6 +215,12 @@ public class ViewerRenderer implements GLSurfaceView.Renderer  {
 			mStlObjectList.get(i).setOverhang (overhang);
 	}
 	
+	public void setInteracting (boolean interacting) {
+		mInteracting = interacting;
+		for (int i=0; i<mStlObjectList.size(); i++) 
+			mStlObjectList.get(i).setUseLod (interacting);
+	}
+	
 	public void setRotationVector (Vector vector) {
 		mVector = vector;
 	}
@@ -222,8 +237,19 @@ public class ViewerRenderer implements GLSurfaceView.Renderer  {
 
 	public void deleteObject (int i) {
 		if (!mDataList.isEmpty()) {
-			mStlObjectList.remove(i);
+			DataStorage data = mDataList.get(i);
+			mFootprints.remove(data);
+			StlObject object = mStlObjectList.remove(i);
 			mDataList.remove(i);
+
+			//The buffers of the copies of a model are kept until the last one is deleted
+			boolean shared = false;
+			for (DataStorage d : mDataList) {
+				if (d.getGeometry() == data.getGeometry()) shared = true;
+			}
+			if (!shared) mBuffers.release(data.getGeometry());
+			//Expanded arrays, on devices without int indices, are only this object's
+			mBuffers.release(object);
             mObjectPressed = -1;
             changeTouchedState();
 
@@ -242,15 +268,16 @@ public class ViewerRenderer implements GLSurfaceView.Renderer  {
 		int object = -1;
 		if (mDataList!=null && !mDataList.isEmpty()) {
 			Ray ray = convertNormalized2DPointToRay(x, y);
+			float closest = Float.MAX_VALUE;
 			 	 
 			for (int i=0; i<mDataList.size(); i++) {
-		        Box objectBox = new Box (mDataList.get(i).getMinX(), mDataList.get(i).getMaxX(), mDataList.get(i).getMinY(), mDataList.get(i).getMaxY(), mDataList.get(i).getMinZ(), mDataList.get(i).getMaxZ());
+				// Exact hit on the triangles, the closest model wins. Models whose hierarchy is not built
+				// yet are picked by their bounding box, as long as no exact hit is closer.
+				float distance = Geometry.intersectionDistanceSurface(ray, mDataList.get(i));
 
-		        // If the ray intersects (if the user touched a part of the screen that
-		        // intersects the stl object's bounding box), then set objectPressed 	        
-		        if (Geometry.intersects(objectBox, ray)) {
+		        if (distance >= 0 && (object == -1 || distance < closest)) {
 		        	object = i;
-		        	break;
+		        	closest = distance;
 		        }               
 			}       
 		}
@@ -261,13 +288,16 @@ public class ViewerRenderer implements GLSurfaceView.Renderer  {
 	}
 
 	public void changeTouchedState () {
+		//Models can be added or changed by the fragment too
+		mFootprints.sync(mDataList);
+
 		for (int i=0; i<mDataList.size();i++) {
 			DataStorage d = mDataList.get(i);
 			if (i==mObjectPressed) {
-				if (!Geometry.isValidPosition(d.getMaxX(), d.getMinX(), d.getMaxY(), d.getMinY(), mDataList, i)) mDataList.get(i).setStateObject(OUT_TOUCHED);
+				if (!Geometry.isValidPosition(d.getMaxX(), d.getMinX(), d.getMaxY(), d.getMinY(), mFootprints, d)) mDataList.get(i).setStateObject(OUT_TOUCHED);
 				else mDataList.get(i).setStateObject(INSIDE_TOUCHED);
 			} else {
-				if (!Geometry.isValidPosition(d.getMaxX(), d.getMinX(), d.getMaxY(), d.getMinY(), mDataList, i)) mDataList.get(i).setStateObject(OUT_NOT_TOUCHED);
+				if (!Geometry.isValidPosition(d.getMaxX(), d.getMinX(), d.getMaxY(), d.getMinY(), mFootprints, d)) mDataList.get(i).setStateObject(OUT_NOT_TOUCHED);
 				else mDataList.get(i).setStateObject(INSIDE_NOT_TOUCHED);
 			}
 		}
@@ -304,6 +334,8 @@ public class ViewerRenderer implements GLSurfaceView.Renderer  {
             data.setMinX(minX);
             data.setMinY(minY);
 
+            mFootprints.update(data);
+
             /******
              * Calculate new center by adding all previous centers
              ******/
@@ -385,6 +417,8 @@ public class ViewerRenderer implements GLSurfaceView.Renderer  {
                 data.setLastScaleFactorX(mScaleFactorX);
                 data.setLastScaleFactorY(mScaleFactorY);
                 data.setLastScaleFactorZ(mScaleFactorZ);
+
+                mFootprints.update(data);
             }
 
 
@@ -442,30 +476,15 @@ public class ViewerRenderer implements GLSurfaceView.Renderer  {
                     DataStorage data = mDataList.get(mObjectPressed);
 
                     data.initMaxMin();
-                    float [] coordinatesArray = data.getVertexArray();
-                    float x,y,z;
-
-                    float [] vector = new float [4];
-                    float [] result = new float [4];
-                    float [] aux = new float [16];
-
-                    float[] rotationMatrix = data.getRotationMatrix();
-
-                    for (int i=0; i<coordinatesArray.length; i+=3) {
-                        vector[0] = coordinatesArray[i];
-                        vector[1] = coordinatesArray[i+1];
-                        vector[2] = coordinatesArray[i+2];
+                    //Hull vertices if it's ready, a few hundred instead of the whole mesh
+                    float [] coordinatesArray = data.getBoundingPoints();
+                    float [] bounds = new float [6];
 
-                        Matrix.setIdentityM(aux, 0);
-                        Matrix.multiplyMM(aux, 0, rotationMatrix, 0, aux, 0);
-                        Matrix.multiplyMV(result, 0, aux, 0, vector, 0);
+                    //Only the rotation, the rest of transformations are added below
+                    new TransformKernel(data.getRotationMatrix()).getBounds(coordinatesArray, bounds);
 
-                        x = result [0];
-                        y = result [1];
-                        z = result [2];
-
-                        data.adjustMaxMin(x, y, z);
-                    }
+                    data.adjustMaxMin(bounds[0], bounds[1], bounds[2]);
+                    data.adjustMaxMin(bounds[3], bounds[4], bounds[5]);
 
                     float maxX = data.getMaxX();
                     float minX = data.getMinX();
@@ -589,6 +608,7 @@ public class ViewerRenderer implements GLSurfaceView.Renderer  {
         try{
 
             mPlate = type;
+            mFootprints = new FootprintGrid(mPlate);
 
             //Create plate to pre-generate the plate
             if (mMode == ViewerMainFragment.PRINT_PREVIEW){
@@ -627,6 +647,10 @@ public class ViewerRenderer implements GLSurfaceView.Renderer  {
 		// Draw background color
         GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
 
+		//New context, the buffers and programs of the previous one don't exist anymore
+		mBuffers.onContextLost();
+		mPrograms.onContextLost();
+
 		Matrix.setIdentityM(mModelMatrix, 0);
         mCurrentSceneAngleX = 0f;
         mCurrentSceneAngleY = 0f;
@@ -645,7 +669,9 @@ public class ViewerRenderer implements GLSurfaceView.Renderer  {
 					if (mDataList.get(i).getVertexArray()!=null) {
 
                         Log.i("VERTEX", "adding");
-                        mStlObjectList.add(new StlObject (mDataList.get(i), mContext, mState));
+                        StlObject stl = new StlObject (mDataList.get(i), mContext, mState, mBuffers, mPrograms);
+                        stl.setUseLod(mInteracting);
+                        mStlObjectList.add(stl);
                     }
 				    else Log.i("VERTEX", "ONE NULL " + i);
                 }
@@ -654,7 +680,7 @@ public class ViewerRenderer implements GLSurfaceView.Renderer  {
 
                 //TODO Random crash
                 try {
-                    mGcodeObject = new GcodeObject (mDataList.get(0), mContext);
+                    mGcodeObject = new GcodeObject (mDataList.get(0), mContext, mBuffers, mPrograms);
                 } catch (NullPointerException e){
                     e.printStackTrace();
                 }
@@ -758,6 +784,9 @@ public class ViewerRenderer implements GLSurfaceView.Renderer  {
 		// Draw background color
         GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
 
+        //Buffers of deleted objects
+        mBuffers.deletePending();
+
         if (isStl()) 
         	for (int i=0; i<mStlObjectList.size(); i++)
         		setColor(i);
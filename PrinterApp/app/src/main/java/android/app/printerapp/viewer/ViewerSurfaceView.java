@@ -387,6 +387,8 @@ public class ViewerSurfaceView extends GLSurfaceView{
 				break;
 			case MotionEvent.ACTION_DOWN:
 
+                mRenderer.setInteracting(true);
+
                 mPreviousX = event.getX();
                 mPreviousY = event.getY();
                 mPreviousDragX = mPreviousX;
@@ -520,6 +522,9 @@ public class ViewerSurfaceView extends GLSurfaceView{
 
                 mMovementMode = ROTATION_MODE;
 
+                //Back to full resolution, drawn by the requestRender below
+                mRenderer.setInteracting(false);
+
 			case MotionEvent.ACTION_POINTER_UP:
 
 				if (touchMode == TOUCH_ZOOM) {